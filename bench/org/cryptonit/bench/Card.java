@@ -0,0 +1,115 @@
+package org.cryptonit.bench;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import javacard.framework.AID;
+import org.cryptonit.CryptonitApplet;
+import org.cryptonit.client.PivSession;
+
+/**
+ * Applet installed in jcardsim, driven the way a PIV middleware would
+ * through a PivSession: short APDUs, command chaining and GET RESPONSE,
+ * or extended APDUs when asked for. Every APDU exchanged is counted,
+ * along with the bytes sent and received.
+ */
+
+public class Card {
+    private final static byte[] AID_BYTES = {
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03,
+        (byte) 0x08, (byte) 0x00, (byte) 0x00, (byte) 0x10,
+        (byte) 0x00
+    };
+
+    private final static byte[] PIN = {
+        0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+    };
+
+    private final static byte[] MGMT_KEY = {
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+    };
+
+    private final Simulator simulator;
+    private final PivSession session;
+    private final boolean extended;
+    private long apdus;
+    private long bytes;
+
+    public Card() {
+        this(false);
+    }
+
+    /*
+     * Each card has its own runtime, the default one is shared by all
+     * simulators of the JVM.
+     */
+    public Card(boolean extended) {
+        simulator = new Simulator(new SimulatorRuntime());
+        AID aid = new AID(AID_BYTES, (short) 0, (byte) AID_BYTES.length);
+        simulator.installApplet(aid, CryptonitApplet.class);
+        session = new PivSession(simulator::transmitCommand);
+        this.extended = extended;
+    }
+
+    public PivSession session() {
+        return session;
+    }
+
+    public void resetCounters() {
+        session.resetCounters();
+        apdus = 0;
+        bytes = 0;
+    }
+
+    public long takeApdus() {
+        long r = session.getApdus() - apdus;
+        apdus = session.getApdus();
+        return r;
+    }
+
+    public long takeBytes() {
+        long r = session.getBytes() - bytes;
+        bytes = session.getBytes();
+        return r;
+    }
+
+    public void select() {
+        session.select();
+        session.setExtended(extended);
+    }
+
+    public void verifyPin() {
+        session.verify(PIN);
+    }
+
+    /* Mutual authentication with the default 3DES management key */
+    public void authenticate() {
+        session.authenticate(MGMT_KEY);
+    }
+
+    /** Returns the public key TLV (7F49) of a new key pair. */
+    public byte[] generate(int slot, int algorithm) {
+        return session.generate(slot, algorithm);
+    }
+
+    /**
+     * Writes a data object. The tag is a '5FC1xx' tag, '7E' or '7F61' and
+     * value is the content of its '53' template.
+     */
+    public void putData(byte[] tag, byte[] value) {
+        session.putData(tag, value);
+    }
+
+    public byte[] getData(byte[] tag) {
+        return session.getData(tag);
+    }
+
+    /**
+     * GENERAL AUTHENTICATE with a key slot, value is sent in the given tag
+     * of the dynamic authentication template.
+     */
+    public byte[] authenticate(int algorithm, int slot, int tag, byte[] value) {
+        return session.generalAuthenticate(algorithm, slot, tag, value);
+    }
+}
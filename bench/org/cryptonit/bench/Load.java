@@ -0,0 +1,357 @@
+package org.cryptonit.bench;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.cryptonit.client.PivException;
+
+/**
+ * Sustained signing load over a pool of simulated cards. Each worker
+ * thread owns one card, jcardsim keeping the state of a simulator per
+ * thread, and loops on VERIFY + GENERAL AUTHENTICATE with an algorithm
+ * drawn from the mix. Messages are hashed with SHA-256 and padded by the
+ * host for RSA keys, so that 2048-bit and larger keys go through command
+ * chaining and GET RESPONSE.
+ *
+ * Run with: ant load (-Dload.args="-cards 8 -mix 07:3,11:1 -seconds 30")
+ *
+ * Options:
+ * -cards N      number of cards and worker threads (default: processors)
+ * -mix A:W,...  PIV algorithms and their weights, at most one per key
+ *               slot (default: 07:1,11:1)
+ * -size N       size of the signed messages in bytes (default: 1024)
+ * -seconds N    measurement duration (default: 10)
+ * -warmup N     duration not measured, after key generation (default: 2)
+ * -extended     extended length APDUs instead of chaining (default: short)
+ * -batch N      messages signed per GENERAL AUTHENTICATE, with the vendor
+ *               batch tag when above 1; latencies are then per signature.
+ *               Batches carry the bare hashes (tag 89), padded by the card,
+ *               and are split when the card has no room for them (6A84)
+ *               (default: 1)
+ */
+
+public class Load {
+    private final static int[] SLOTS = {0x9A, 0x9C, 0x9D, 0x9E};
+
+    private final static byte[] DIGEST_INFO_SHA256 = {
+        (byte) 0x30, (byte) 0x31, (byte) 0x30, (byte) 0x0D,
+        (byte) 0x06, (byte) 0x09, (byte) 0x60, (byte) 0x86,
+        (byte) 0x48, (byte) 0x01, (byte) 0x65, (byte) 0x03,
+        (byte) 0x04, (byte) 0x02, (byte) 0x01, (byte) 0x05,
+        (byte) 0x00, (byte) 0x04, (byte) 0x20
+    };
+
+    private int cards = Runtime.getRuntime().availableProcessors();
+    private int[] algorithms = {0x07, 0x11};
+    private int[] weights = {1, 1};
+    private int size = 1024;
+    private int seconds = 10;
+    private int warmup = 2;
+    private boolean extended = false;
+    private int batch = 1;
+
+    /** Latencies of operations, in nanoseconds. */
+    static class Latencies {
+        long[] values = new long[1024];
+        int count;
+
+        void add(long v) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = v;
+        }
+
+        void addAll(Latencies l) {
+            for (int i = 0; i < l.count; i++) {
+                add(l.values[i]);
+            }
+        }
+
+        /* Sorts the values, percentiles are then read from them */
+        void sort() {
+            Arrays.sort(values, 0, count);
+        }
+
+        double percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            int i = (int) Math.ceil(p / 100 * count) - 1;
+            return values[Math.max(i, 0)] / 1e6;
+        }
+    }
+
+    /** Operations of one card, per algorithm of the mix. */
+    static class Result {
+        final int card;
+        final Latencies[] latencies;
+        final long[] apdus;
+        long bytes;
+
+        Result(int card, int algorithms) {
+            this.card = card;
+            this.apdus = new long[algorithms];
+            this.latencies = new Latencies[algorithms];
+            for (int i = 0; i < algorithms; i++) {
+                latencies[i] = new Latencies();
+            }
+        }
+
+        Latencies all() {
+            Latencies l = new Latencies();
+            for (Latencies a : latencies) {
+                l.addAll(a);
+            }
+            return l;
+        }
+    }
+
+    private static byte[] sha256(byte[] message) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(message);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* EMSA-PKCS1-v1_5 block of a SHA-256 hash */
+    private static byte[] pkcs1(byte[] hash, int length) {
+        byte[] b = new byte[length];
+        int t = DIGEST_INFO_SHA256.length + hash.length;
+        Arrays.fill(b, 2, length - t - 1, (byte) 0xFF);
+        b[1] = 0x01;
+        System.arraycopy(DIGEST_INFO_SHA256, 0, b, length - t, DIGEST_INFO_SHA256.length);
+        System.arraycopy(hash, 0, b, length - hash.length, hash.length);
+        return b;
+    }
+
+    private static int modulusLength(int algorithm) {
+        switch (algorithm) {
+            case 0x06:
+                return 128;
+            case 0x07:
+                return 256;
+            case 0x05:
+                return 384;
+            case 0x16:
+                return 512;
+            default:
+                return 0;
+        }
+    }
+
+    /*
+     * Signs values in batches of at most limits[i] of them. A batch the
+     * card has no room for is refused with 6A84: the limit of the algorithm
+     * is then halved and the values left are sent again.
+     */
+    private void signBatch(Card card, int i, byte[][] values, int[] limits) {
+        int o = 0;
+        while (o < values.length) {
+            int n = Math.min(limits[i], values.length - o);
+            try {
+                card.session().signBatch(algorithms[i], SLOTS[i], 0x89,
+                        Arrays.copyOfRange(values, o, o + n));
+                o += n;
+            } catch (PivException e) {
+                if ((e.getSW() != 0x6A84) || (n == 1)) {
+                    throw e;
+                }
+                limits[i] = n / 2;
+            }
+        }
+    }
+
+    /*
+     * Provisions a card then signs until the end of the window. The window
+     * is set once every card is ready, key generation is not measured.
+     */
+    private Result run(int id, CyclicBarrier barrier, long[] window) throws Exception {
+        Card card = new Card(extended);
+        Random random = new Random(id);
+        Result result = new Result(id, algorithms.length);
+        byte[] message = new byte[size];
+        int[] limits = new int[algorithms.length];
+        int total = 0;
+
+        Arrays.fill(limits, batch);
+        for (int w : weights) {
+            total += w;
+        }
+
+        card.select();
+        card.verifyPin();
+        card.authenticate();
+        for (int i = 0; i < algorithms.length; i++) {
+            card.generate(SLOTS[i], algorithms[i]);
+        }
+        barrier.await();
+        long start = window[0], end = window[1];
+        card.resetCounters();
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            int r = random.nextInt(total), i = 0;
+            while (r >= weights[i]) {
+                r -= weights[i++];
+            }
+            byte[][] values = new byte[batch][];
+            for (int j = 0; j < batch; j++) {
+                random.nextBytes(message);
+                values[j] = sha256(message);
+                int n = modulusLength(algorithms[i]);
+                if ((n > 0) && (batch == 1)) {
+                    values[j] = pkcs1(values[j], n);
+                }
+            }
+
+            card.verifyPin();
+            if (batch == 1) {
+                card.authenticate(algorithms[i], SLOTS[i], 0x81, values[0]);
+            } else {
+                signBatch(card, i, values, limits);
+            }
+            long t = System.nanoTime();
+            if (now >= start) {
+                for (int j = 0; j < batch; j++) {
+                    result.latencies[i].add((t - now) / batch);
+                }
+                result.apdus[i] += card.takeApdus();
+                result.bytes += card.takeBytes();
+            } else {
+                card.resetCounters();
+            }
+        }
+        return result;
+    }
+
+    private static String line(String name, Latencies l, double seconds, long apdus) {
+        l.sort();
+        return String.format("%-8s %8d %9.1f %8.2f %8.2f %8.2f %8.2f %7.1f",
+                name, l.count, l.count / seconds, l.percentile(50),
+                l.percentile(90), l.percentile(99), l.percentile(100),
+                (l.count == 0) ? 0.0 : (double) apdus / l.count);
+    }
+
+    public void run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(cards);
+        final long[] window = new long[2];
+        CyclicBarrier barrier = new CyclicBarrier(cards, () -> {
+            window[0] = System.nanoTime() + warmup * 1000000000L;
+            window[1] = window[0] + seconds * 1000000000L;
+        });
+
+        System.out.println(String.format("%d cards, mix %s, %d-byte messages, %s APDUs, batch %d",
+                cards, mix(), size, extended ? "extended" : "short", batch));
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < cards; i++) {
+            final int id = i;
+            futures.add(pool.submit(() -> run(id, barrier, window)));
+        }
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> f : futures) {
+                results.add(f.get());
+            }
+        } finally {
+            /* Releases the cards waiting on the barrier if one failed */
+            pool.shutdownNow();
+        }
+
+        String header = String.format("%-8s %8s %9s %8s %8s %8s %8s %7s",
+                "", "ops", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "APDUs");
+        System.out.println(header);
+        Latencies total = new Latencies();
+        Latencies[] perAlgorithm = new Latencies[algorithms.length];
+        long[] perAlgorithmApdus = new long[algorithms.length];
+        long apdus = 0;
+        long bytes = 0;
+        for (int i = 0; i < algorithms.length; i++) {
+            perAlgorithm[i] = new Latencies();
+        }
+        for (Result r : results) {
+            Latencies all = r.all();
+            long a = 0;
+            for (int i = 0; i < algorithms.length; i++) {
+                perAlgorithm[i].addAll(r.latencies[i]);
+                perAlgorithmApdus[i] += r.apdus[i];
+                a += r.apdus[i];
+            }
+            System.out.println(line("card " + r.card, all, seconds, a));
+            total.addAll(all);
+            apdus += a;
+            bytes += r.bytes;
+        }
+        for (int i = 0; i < algorithms.length; i++) {
+            System.out.println(line(String.format("alg %02X", algorithms[i]),
+                    perAlgorithm[i], seconds, perAlgorithmApdus[i]));
+        }
+        System.out.println(line("total", total, seconds, apdus));
+        if (total.count > 0) {
+            System.out.println(String.format("%.1f bytes/op", (double) bytes / total.count));
+        }
+    }
+
+    private String mix() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < algorithms.length; i++) {
+            sb.append(String.format((i == 0) ? "%02X:%d" : ",%02X:%d",
+                    algorithms[i], weights[i]));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Load load = new Load();
+        for (int i = 0; i < args.length; i += 2) {
+            if (args[i].equals("-extended")) {
+                load.extended = true;
+                i--;
+                continue;
+            }
+            String v = args[i + 1];
+            switch (args[i]) {
+                case "-cards":
+                    load.cards = Integer.parseInt(v);
+                    break;
+                case "-size":
+                    load.size = Integer.parseInt(v);
+                    break;
+                case "-seconds":
+                    load.seconds = Integer.parseInt(v);
+                    break;
+                case "-warmup":
+                    load.warmup = Integer.parseInt(v);
+                    break;
+                case "-batch":
+                    load.batch = Integer.parseInt(v);
+                    break;
+                case "-mix":
+                    String[] mix = v.split(",");
+                    if (mix.length > SLOTS.length) {
+                        throw new IllegalArgumentException("At most "
+                                + SLOTS.length + " algorithms");
+                    }
+                    load.algorithms = new int[mix.length];
+                    load.weights = new int[mix.length];
+                    for (int j = 0; j < mix.length; j++) {
+                        String[] aw = mix[j].split(":");
+                        load.algorithms[j] = Integer.parseInt(aw[0], 16);
+                        load.weights[j] = (aw.length > 1) ? Integer.parseInt(aw[1]) : 1;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        load.run();
+    }
+}
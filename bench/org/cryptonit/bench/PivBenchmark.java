@@ -0,0 +1,228 @@
+package org.cryptonit.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.util.encoders.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the PIV commands, measured on the applet running in
+ * jcardsim. Each state owns its own card, set up once per trial.
+ *
+ * Run with: ant bench (-Dbench.args="regexp -p algorithm=07" to filter)
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PivBenchmark {
+
+    /* Selected card, with the PIN verified and the management key */
+    static Card open() {
+        Card card = new Card();
+        card.select();
+        card.verifyPin();
+        card.authenticate();
+        card.resetCounters();
+        return card;
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        Card card;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            card = open();
+        }
+    }
+
+    /* One data object, written with a typical size for its kind */
+    @State(Scope.Thread)
+    public static class DataObject {
+        @Param({
+            "5FC101", "5FC102", "5FC103", "5FC105", "5FC106", "5FC107",
+            "5FC108", "5FC109", "5FC10A", "5FC10B", "5FC10C", "5FC10D",
+            "5FC10E", "5FC10F", "5FC110", "5FC111", "5FC112", "5FC113",
+            "5FC114", "5FC115", "5FC116", "5FC117", "5FC118", "5FC119",
+            "5FC11A", "5FC11B", "5FC11C", "5FC11D", "5FC11E", "5FC11F",
+            "5FC120", "5FC121", "5FC122", "5FC123", "7E", "7F61"
+        })
+        public String tag;
+        Card card;
+        byte[] tagBytes;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            card = open();
+            tagBytes = Hex.decode(tag);
+            byte[] value = new byte[size(tag)];
+            Arrays.fill(value, (byte) 0x5A);
+            card.putData(tagBytes, value);
+            card.resetCounters();
+        }
+
+        private static int size(String tag) {
+            switch (tag) {
+                case "5FC102":
+                    return 61;
+                case "5FC103":
+                    return 1000;
+                case "5FC106":
+                    return 500;
+                case "5FC107":
+                    return 51;
+                case "5FC108":
+                case "5FC121":
+                    return 4000;
+                case "5FC109":
+                    return 100;
+                case "5FC10C":
+                    return 64;
+                case "5FC123":
+                    return 12;
+                case "7E":
+                    return 18;
+                case "7F61":
+                    return 100;
+                default:
+                    /* Certificates */
+                    return 1200;
+            }
+        }
+    }
+
+    /* A key pair of the given PIV algorithm in slot 9C */
+    @State(Scope.Thread)
+    public static class SigningKey {
+        @Param({"06", "07", "05", "16", "11", "14"})
+        public String algorithm;
+        Card card;
+        int alg;
+        byte[] block;
+        byte[] hash;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            card = open();
+            alg = Integer.parseInt(algorithm, 16);
+            card.generate(0x9C, alg);
+            hash = new byte[32];
+            Arrays.fill(hash, (byte) 0x33);
+            switch (alg) {
+                case 0x06:
+                    block = rsaBlock(128);
+                    break;
+                case 0x07:
+                    block = rsaBlock(256);
+                    break;
+                case 0x05:
+                    block = rsaBlock(384);
+                    break;
+                case 0x16:
+                    block = rsaBlock(512);
+                    break;
+                default:
+                    block = hash;
+                    break;
+            }
+            card.resetCounters();
+        }
+
+        private byte[] rsaBlock(int length) {
+            byte[] b = new byte[length];
+            Arrays.fill(b, (byte) 0xFF);
+            b[0] = 0x00;
+            b[1] = 0x01;
+            b[length - hash.length - 1] = 0x00;
+            System.arraycopy(hash, 0, b, length - hash.length, hash.length);
+            return b;
+        }
+    }
+
+    /*
+     * Key generation, the key objects of the slot are regenerated in place
+     * at each operation. The keys are never used: the simulator misreads a
+     * component that got shorter, which does not affect generation time.
+     */
+    @State(Scope.Thread)
+    public static class KeyGeneration {
+        @Param({"06", "07", "11", "14"})
+        public String algorithm;
+        Card card;
+        int alg;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            card = open();
+            alg = Integer.parseInt(algorithm, 16);
+        }
+    }
+
+    private final static byte[] CERTIFICATE = new byte[1200];
+    private final static byte[] RETIRED_TAG = {
+        (byte) 0x5F, (byte) 0xC1, (byte) 0x0D
+    };
+
+    @Benchmark
+    public void select(Session s, Traffic t) {
+        s.card.select();
+        t.add(s.card);
+    }
+
+    @Benchmark
+    public void verifyPin(Session s, Traffic t) {
+        s.card.verifyPin();
+        t.add(s.card);
+    }
+
+    @Benchmark
+    public byte[] getData(DataObject s, Traffic t) {
+        byte[] r = s.card.getData(s.tagBytes);
+        t.add(s.card);
+        return r;
+    }
+
+    /* Chained upload of a certificate */
+    @Benchmark
+    public void putData(Session s, Traffic t) {
+        s.card.putData(RETIRED_TAG, CERTIFICATE);
+        t.add(s.card);
+    }
+
+    /* Padded block for RSA keys, hash for EC keys (tag 81) */
+    @Benchmark
+    public byte[] sign(SigningKey s, Traffic t) {
+        byte[] r = s.card.authenticate(s.alg, 0x9C, 0x81, s.block);
+        t.add(s.card);
+        return r;
+    }
+
+    /* SHA-256 hash only, padded by the card for RSA keys (tag 89) */
+    @Benchmark
+    public byte[] signHash(SigningKey s, Traffic t) {
+        byte[] r = s.card.authenticate(s.alg, 0x9C, 0x89, s.hash);
+        t.add(s.card);
+        return r;
+    }
+
+    @Benchmark
+    public byte[] generate(KeyGeneration s, Traffic t) {
+        byte[] r = s.card.generate(0x9A, s.alg);
+        t.add(s.card);
+        return r;
+    }
+}
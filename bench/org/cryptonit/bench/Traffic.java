@@ -0,0 +1,49 @@
+package org.cryptonit.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * APDUs and bytes exchanged with the card, reported by JMH next to the
+ * operation rate. Dividing a counter rate by the operation rate gives the
+ * cost of one operation, which is also printed at the end of each trial.
+ */
+
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Traffic {
+    public long apdus;
+    public long bytes;
+
+    private long operations;
+    private long totalApdus;
+    private long totalBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        apdus = 0;
+        bytes = 0;
+    }
+
+    /** Accounts one operation and the traffic it caused on this card. */
+    public void add(Card card) {
+        long a = card.takeApdus(), b = card.takeBytes();
+        apdus += a;
+        bytes += b;
+        operations += 1;
+        totalApdus += a;
+        totalBytes += b;
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        if (operations > 0) {
+            System.out.println(String.format("%n%.1f APDUs/op, %.1f bytes/op",
+                    (double) totalApdus / operations, (double) totalBytes / operations));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.cryptonit.client;
+
+/**
+ * A command returned an error status word.
+ */
+
+public class PivException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int sw;
+
+    public PivException(String command, int sw) {
+        super(String.format("%s failed: SW %04X", command, sw));
+        this.sw = sw;
+    }
+
+    public int getSW() {
+        return sw;
+    }
+
+    /** Remaining tries for a 63Cx status word, -1 otherwise. */
+    public int getTriesRemaining() {
+        return ((sw & 0xFFF0) == 0x63C0) ? (sw & 0x0F) : -1;
+    }
+}
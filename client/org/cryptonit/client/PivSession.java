@@ -0,0 +1,397 @@
+package org.cryptonit.client;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Host side of the PIV commands. Command data longer than what fits in
+ * one APDU is sent with command chaining, responses are read with GET
+ * RESPONSE into a buffer reused from one command to the next.
+ *
+ * Extended length APDUs are used when the card advertises them in its
+ * answer to SELECT (extended length information '7F66'): command data
+ * then goes in chunks of the advertised size and whole responses come
+ * back in a single APDU. Otherwise commands are split in short APDUs.
+ *
+ * Every APDU exchanged is counted, along with the bytes sent and
+ * received.
+ */
+
+public class PivSession {
+    public final static byte[] PIV_AID = {
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08
+    };
+
+    public final static int SW_NO_ERROR = 0x9000;
+
+    private final static int SHORT_COMMAND = 255;
+    private final static int SHORT_RESPONSE = 256;
+
+    private final Transport transport;
+    private boolean advertised = false;
+    private boolean extended = false;
+    private int maxCommand = SHORT_COMMAND;
+    private int maxResponse = SHORT_RESPONSE;
+
+    /* Response data of the last command, valid up to length */
+    private byte[] response = new byte[1024];
+    private int length;
+
+    private long apdus;
+    private long bytes;
+
+    public PivSession(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Uses extended length APDUs, only if the card advertised them when
+     * it was selected.
+     */
+    public void setExtended(boolean extended) {
+        this.extended = extended && advertised;
+    }
+
+    public boolean isExtended() {
+        return extended;
+    }
+
+    public long getApdus() {
+        return apdus;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void resetCounters() {
+        apdus = 0;
+        bytes = 0;
+    }
+
+    /** Response data of the last command, the buffer is reused. */
+    public byte[] getResponse() {
+        return response;
+    }
+
+    public int getResponseLength() {
+        return length;
+    }
+
+    /* Exchanges one APDU and appends its response data */
+    private int exchange(int cla, int ins, int p1, int p2,
+            byte[] data, int offset, int lc, int ne) {
+        boolean ext = (lc > SHORT_COMMAND) || (ne > SHORT_RESPONSE);
+        int n = 4 + ((lc > 0) ? (ext ? 3 : 1) + lc : 0)
+                + ((ne > 0) ? (ext ? ((lc > 0) ? 2 : 3) : 1) : 0);
+        byte[] c = new byte[n];
+        int o = 0;
+
+        c[o++] = (byte) cla;
+        c[o++] = (byte) ins;
+        c[o++] = (byte) p1;
+        c[o++] = (byte) p2;
+        if (lc > 0) {
+            if (ext) {
+                c[o++] = 0x00;
+                c[o++] = (byte) (lc >> 8);
+            }
+            c[o++] = (byte) lc;
+            System.arraycopy(data, offset, c, o, lc);
+            o += lc;
+        }
+        if (ne > 0) {
+            if (ext) {
+                if (lc == 0) {
+                    c[o++] = 0x00;
+                }
+                c[o++] = (byte) (ne >> 8);
+            }
+            c[o++] = (byte) ne;
+        }
+
+        byte[] r = transport.transmit(c);
+        apdus += 1;
+        bytes += n + r.length;
+        int l = r.length - 2;
+        if (length + l > response.length) {
+            response = Arrays.copyOf(response, Math.max(response.length * 2, length + l));
+        }
+        System.arraycopy(r, 0, response, length, l);
+        length += l;
+        return ((r[l] & 0xFF) << 8) | (r[l + 1] & 0xFF);
+    }
+
+    /**
+     * Sends a command, chained when its data does not fit in one APDU,
+     * and reads its whole response with GET RESPONSE.
+     *
+     * @return the status word of the last APDU
+     */
+    public int transmit(int ins, int p1, int p2, byte[] data, int offset, int lc) {
+        int chunk = extended ? maxCommand : SHORT_COMMAND;
+        int ne = extended ? maxResponse : SHORT_RESPONSE;
+        int sw;
+
+        length = 0;
+        while (lc > chunk) {
+            sw = exchange(0x10, ins, p1, p2, data, offset, chunk, 0);
+            if (sw != SW_NO_ERROR) {
+                return sw;
+            }
+            offset += chunk;
+            lc -= chunk;
+        }
+        sw = exchange(0x00, ins, p1, p2, data, offset, lc, ne);
+        while ((sw & 0xFF00) == 0x6100) {
+            sw = exchange(0x00, 0xC0, 0x00, 0x00, null, 0, 0,
+                    ((sw & 0xFF) == 0) ? SHORT_RESPONSE : (sw & 0xFF));
+        }
+        return sw;
+    }
+
+    public int transmit(int ins, int p1, int p2, byte[] data) {
+        return transmit(ins, p1, p2, data, 0, (data == null) ? 0 : data.length);
+    }
+
+    /* Sends a command and returns a copy of its response data */
+    private byte[] send(String name, int ins, int p1, int p2, byte[] data) {
+        int sw = transmit(ins, p1, p2, data);
+        if (sw != SW_NO_ERROR) {
+            throw new PivException(name, sw);
+        }
+        return Arrays.copyOf(response, length);
+    }
+
+    /**
+     * Selects the PIV application and reads the extended length
+     * information from its answer. Extended length APDUs are then used
+     * if the card supports them.
+     *
+     * @return the application property template
+     */
+    public byte[] select() {
+        byte[] fci = send("SELECT", 0xA4, 0x04, 0x00, PIV_AID);
+        advertised = false;
+        maxCommand = SHORT_COMMAND;
+        maxResponse = SHORT_RESPONSE;
+
+        /* 61 L { ... 7F66 08 { 02 02 [command] 02 02 [response] } } */
+        int o = 2;
+        while (o + 1 < fci.length) {
+            int tag = fci[o++] & 0xFF;
+            if ((tag & 0x1F) == 0x1F) {
+                tag = (tag << 8) | (fci[o++] & 0xFF);
+            }
+            int l = fci[o++] & 0xFF;
+            if ((tag == 0x7F66) && (l == 8) && (fci[o] == 0x02) && (fci[o + 4] == 0x02)) {
+                maxCommand = ((fci[o + 2] & 0xFF) << 8) | (fci[o + 3] & 0xFF);
+                maxResponse = ((fci[o + 6] & 0xFF) << 8) | (fci[o + 7] & 0xFF);
+                advertised = true;
+            }
+            o += l;
+        }
+        extended = advertised;
+        return fci;
+    }
+
+    /** Verifies the PIN, padded with 'FF' to 8 bytes. */
+    public void verify(byte[] pin) {
+        if (pin.length > 8) {
+            throw new IllegalArgumentException("PIN longer than 8 bytes");
+        }
+        byte[] padded = new byte[8];
+        Arrays.fill(padded, (byte) 0xFF);
+        System.arraycopy(pin, 0, padded, 0, pin.length);
+        send("VERIFY", 0x20, 0x00, 0x80, padded);
+    }
+
+    /**
+     * Mutual authentication with a 3DES management key.
+     *
+     * @throws SecurityException if the card does not prove it holds the key
+     */
+    public void authenticate(byte[] key) {
+        byte[] witness = send("GENERAL AUTHENTICATE", 0x87, 0x03, 0x9B, new byte[]{
+            (byte) 0x7C, (byte) 0x02, (byte) 0x80, (byte) 0x00
+        });
+        byte[] challenge = new byte[8];
+        new SecureRandom().nextBytes(challenge);
+        byte[] request = new byte[22];
+        request[0] = (byte) 0x7C;
+        request[1] = (byte) 0x14;
+        request[2] = (byte) 0x80;
+        request[3] = (byte) 0x08;
+        request[12] = (byte) 0x81;
+        request[13] = (byte) 0x08;
+        System.arraycopy(challenge, 0, request, 14, 8);
+
+        try {
+            Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "DESede"));
+            cipher.doFinal(witness, 4, 8, request, 4);
+            byte[] r = send("GENERAL AUTHENTICATE", 0x87, 0x03, 0x9B, request);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DESede"));
+            if ((r.length != 12) || !Arrays.equals(cipher.doFinal(challenge),
+                    Arrays.copyOfRange(r, 4, 12))) {
+                throw new SecurityException("GENERAL AUTHENTICATE: wrong card response to the challenge");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a data object.
+     *
+     * @return the object as returned by the card, '53' template included
+     */
+    public byte[] getData(byte[] tag) {
+        byte[] request = new byte[tag.length + 2];
+        request[0] = (byte) 0x5C;
+        request[1] = (byte) tag.length;
+        System.arraycopy(tag, 0, request, 2, tag.length);
+        return send("GET DATA", 0xCB, 0x3F, 0xFF, request);
+    }
+
+    /**
+     * Writes a data object. The tag is a '5FC1xx' or vendor '5FFFxx' tag,
+     * '7E' or '7F61', value is the content of its template.
+     */
+    public void putData(byte[] tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (tag.length == 3) {
+            out.write(0x5C);
+            out.write(tag.length);
+            out.write(tag, 0, tag.length);
+            out.write(0x53);
+        } else {
+            out.write(tag, 0, tag.length);
+        }
+        writeLength(out, value.length);
+        out.write(value, 0, value.length);
+        send("PUT DATA", 0xDB, 0x3F, 0xFF, out.toByteArray());
+    }
+
+    /** Returns the public key template (7F49) of a new key pair. */
+    public byte[] generate(int slot, int algorithm) {
+        return send("GENERATE ASYMMETRIC KEY PAIR", 0x47, 0x00, slot, new byte[]{
+            (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01, (byte) algorithm
+        });
+    }
+
+    /**
+     * GENERAL AUTHENTICATE with a key slot, value is sent in the given tag
+     * of the dynamic authentication template.
+     *
+     * @return the response template (7C)
+     */
+    public byte[] generalAuthenticate(int algorithm, int slot, int tag, byte[] value) {
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        inner.write(0x82);
+        inner.write(0x00);
+        inner.write(tag);
+        writeLength(inner, value.length);
+        inner.write(value, 0, value.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x7C);
+        writeLength(out, inner.size());
+        out.write(inner.toByteArray(), 0, inner.size());
+        return send("GENERAL AUTHENTICATE", 0x87, algorithm, slot, out.toByteArray());
+    }
+
+    /* Value of the response tag (82) of a dynamic authentication template */
+    private static byte[] result(byte[] template) {
+        int o = skipLength(template, 1);
+        if ((template[0] != (byte) 0x7C) || (template[o] != (byte) 0x82)) {
+            throw new IllegalStateException("Invalid response template");
+        }
+        int l = readLength(template, o + 1);
+        o = skipLength(template, o + 1);
+        return Arrays.copyOfRange(template, o, o + l);
+    }
+
+    /**
+     * Signs with the key of a slot: a padded block for RSA keys, a hash
+     * for EC keys.
+     */
+    public byte[] sign(int algorithm, int slot, byte[] data) {
+        return result(generalAuthenticate(algorithm, slot, 0x81, data));
+    }
+
+    /**
+     * Signs several values with the key of a slot in one GENERAL
+     * AUTHENTICATE, using the vendor batch tag (8A). Each value is sent in
+     * the given tag: 81 as for sign(), or 89 for a hash, or its
+     * DigestInfo, that the card pads for RSA keys.
+     *
+     * @return the signatures, in the order of the values
+     */
+    public byte[][] signBatch(int algorithm, int slot, int tag, byte[][] values) {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        for (byte[] v : values) {
+            list.write(tag);
+            writeLength(list, v.length);
+            list.write(v, 0, v.length);
+        }
+        byte[] template = generalAuthenticate(algorithm, slot, 0x8A, list.toByteArray());
+        if (template[0] != (byte) 0x7C) {
+            throw new IllegalStateException("Invalid response template");
+        }
+
+        byte[][] signatures = new byte[values.length][];
+        int o = skipLength(template, 1);
+        for (int i = 0; i < values.length; i++) {
+            if ((o >= template.length) || (template[o] != (byte) 0x82)) {
+                throw new IllegalStateException("Missing signature " + i);
+            }
+            int l = readLength(template, o + 1);
+            o = skipLength(template, o + 1);
+            signatures[i] = Arrays.copyOfRange(template, o, o + l);
+            o += l;
+        }
+        return signatures;
+    }
+
+    /**
+     * Decrypts with the key of a slot: raw RSA on a cryptogram, or for EC
+     * keys the shared secret with the given public point.
+     */
+    public byte[] decrypt(int algorithm, int slot, byte[] data) {
+        boolean ec = (algorithm == 0x11) || (algorithm == 0x14);
+        return result(generalAuthenticate(algorithm, slot, ec ? 0x85 : 0x81, data));
+    }
+
+    public static void writeLength(ByteArrayOutputStream out, int length) {
+        if (length < 128) {
+            out.write(length);
+        } else if (length < 256) {
+            out.write(0x81);
+            out.write(length);
+        } else {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        }
+    }
+
+    public static int readLength(byte[] buf, int offset) {
+        int b = buf[offset] & 0xFF;
+        if (b < 0x80) {
+            return b;
+        } else if (b == 0x81) {
+            return buf[offset + 1] & 0xFF;
+        }
+        return ((buf[offset + 1] & 0xFF) << 8) | (buf[offset + 2] & 0xFF);
+    }
+
+    public static int skipLength(byte[] buf, int offset) {
+        int b = buf[offset] & 0xFF;
+        return offset + ((b < 0x80) ? 1 : (b - 0x7F));
+    }
+}
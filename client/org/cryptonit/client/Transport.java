@@ -0,0 +1,11 @@
+package org.cryptonit.client;
+
+/**
+ * Exchanges APDUs with a card: a reader, a simulator or a remote token.
+ */
+
+public interface Transport {
+
+    /** Sends a command APDU and returns the response, data and SW. */
+    byte[] transmit(byte[] command);
+}
@@ -9,60 +9,82 @@ import javacard.framework.Util;
  */
 
 public class BERTLV {
-    final private byte [] buffer;
-    final private short begin;
-    final private short end;
-    private short current;
-
-    public BERTLV(byte[] buffer, short begin, short end) {
-        this.buffer = buffer;
-        this.begin = begin;
-        this.current = begin;
-        this.end = end;
+    /**
+     * Returns the offset following the BER length field at offset.
+     */
+    public static short skipLength(byte[] buf, short offset) {
+        byte b = buf[offset];
+        if (b == (byte) 0x81) {
+            return (short) (offset + 2);
+        } else if (b == (byte) 0x82) {
+            return (short) (offset + 3);
+        }
+        return (short) (offset + 1);
     }
 
-    public short getOffset() {
-        return current;
+    /**
+     * Returns the offset following the BER length field at offset, once
+     * checked that it is a valid field ending before end.
+     */
+    public static short checkLength(byte[] buf, short offset, short end) {
+        if (offset < end) {
+            byte b = buf[offset];
+            if (((b >= 0) || (b == (byte) 0x81) || (b == (byte) 0x82))
+                    && (skipLength(buf, offset) <= end)) {
+                return skipLength(buf, offset);
+            }
+        }
+        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        return end;
     }
 
-    public short rewind() {
-        current = begin;
-        return current;
+    /**
+     * Writes a BER length field at offset.
+     *
+     * @return the offset following the length field
+     */
+    public static short encodeLength(byte[] buf, short offset, short length) {
+        if (length < 128) {
+            buf[offset++] = (byte) length;
+        } else if (length < 256) {
+            buf[offset++] = (byte) 0x81;
+            buf[offset++] = (byte) length;
+        } else {
+            buf[offset++] = (byte) 0x82;
+            offset = Util.setShort(buf, offset, length);
+        }
+        return offset;
     }
 
-    public short skip(short offset) {
-        if (((short) (current + offset)) >= end) {
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }        
-        return current += offset;
+    /**
+     * Returns the size of the BER length field encoding length.
+     */
+    public static short lengthLength(short length) {
+        return (short) ((length < 128) ? 1 : ((length < 256) ? 2 : 3));
     }
 
-    public short readLength() {
-        if (current >= end) {
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        byte b = buffer[current];
-        short s = (short) buffer[current];
-        current += 1;
+    /**
+     * Writes a single byte tag and its BER length field at offset, the
+     * value is then written by the caller right after them.
+     *
+     * @return the offset of the value
+     */
+    public static short encodeHeader(byte[] buf, short offset, byte tag, short length) {
+        buf[offset++] = tag;
+        return encodeLength(buf, offset, length);
+    }
 
-        if ((b & (byte) 0x80) != 0) {
-            if (b == (byte) 0x81) {
-                if (current >= end) {
-                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-                }
-                s = (short) (0x00FF & buffer[current]);
-                this.current += 1;
-            } else if (b == (byte) 0x82) {
-                if (current >= (short) (end + 1)) {
-                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-                }
-                s = Util.getShort(buffer, current);
-                this.current += 2;
-            } else {
-                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-            }
-        }
-        return s;
+    /**
+     * Writes a single byte tag and its BER length field right in front of
+     * a value already at offset, once its length is known. The caller
+     * leaves room for the longest header before the value.
+     *
+     * @return the offset of the tag
+     */
+    public static short prependHeader(byte[] buf, short offset, byte tag, short length) {
+        offset -= (short) (1 + lengthLength(length));
+        encodeHeader(buf, offset, tag, length);
+        return offset;
     }
 
     public static short decodeLength(byte[] buf, short offset) {
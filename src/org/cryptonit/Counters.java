@@ -0,0 +1,114 @@
+package org.cryptonit;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Usage counters, 32-bit unsigned big-endian values kept in persistent
+ * memory. Increments are accumulated in RAM and only added to the
+ * persistent values by flush(), which the applet calls when it is
+ * deselected and before the counters are read, so that counting does not
+ * cost a persistent write on every command. A RAM counter about to
+ * overflow is flushed first. Counts of a session ended by a reset without
+ * deselection are lost.
+ */
+
+public class Counters {
+
+    /* Commands counted individually, the last entry counts all others */
+    public final static byte[] INS = {
+        (byte) 0xA4, (byte) 0x20, (byte) 0x24, (byte) 0xCB,
+        (byte) 0xC0, (byte) 0xDB, (byte) 0x47, (byte) 0x87,
+        (byte) 0xFF
+    };
+
+    public final static byte CALLS         = 0x00;
+    public final static byte BYTES_IN      = 0x09;
+    public final static byte BYTES_OUT     = 0x0A;
+    public final static byte GET_RESPONSE  = 0x0B;
+    public final static byte CHAINED       = 0x0C;
+    public final static byte ALLOCATIONS   = 0x0D;
+    /* Private key operations, one counter per key slot */
+    public final static byte OPERATIONS    = 0x0E;
+
+    private byte[] values = null;
+    private short[] pending = null;
+
+    public Counters(byte slots) {
+        short n = (short) (OPERATIONS + slots);
+        values = new byte[(short) (n * 4)];
+        pending = JCSystem.makeTransientShortArray(n, JCSystem.CLEAR_ON_RESET);
+    }
+
+    public void increment(short counter) {
+        add(counter, (short) 1);
+    }
+
+    /** Adds a non-negative value to a counter. */
+    public void add(short counter, short value) {
+        if (pending[counter] > (short) (0x7FFF - value)) {
+            flush();
+        }
+        pending[counter] += value;
+    }
+
+    /** Counts a command in the counter of its instruction. */
+    public void call(byte ins) {
+        short i = 0;
+        while ((i < (short) (INS.length - 1)) && (INS[i] != ins)) {
+            i++;
+        }
+        increment((short) (CALLS + i));
+    }
+
+    /** Adds the increments accumulated in RAM to the persistent values. */
+    public void flush() {
+        short n = (short) pending.length;
+        short i;
+
+        for (i = 0; i < n; i++) {
+            if (pending[i] != 0) {
+                break;
+            }
+        }
+        if (i == n) {
+            return;
+        }
+
+        JCSystem.beginTransaction();
+        for (; i < n; i++) {
+            short v = pending[i];
+            short o = (short) (i * 4 + 3);
+            while (v != 0) {
+                /* Added from the last byte, the carry goes with the rest of v */
+                short s = (short) ((values[o] & 0xFF) + (v & 0xFF));
+                values[o] = (byte) s;
+                v = (short) (((v >> 8) & 0xFF) + ((s >> 8) & 0xFF));
+                if (o == (short) (i * 4)) {
+                    break;
+                }
+                o--;
+            }
+            pending[i] = 0;
+        }
+        JCSystem.commitTransaction();
+    }
+
+    /**
+     * Copies the persistent 4-byte value of a counter, flush() must be
+     * called first to include the latest increments.
+     *
+     * @return the offset following the value
+     */
+    public short get(short counter, byte[] buf, short offset) {
+        return Util.arrayCopyNonAtomic(values, (short) (counter * 4),
+                buf, offset, (short) 4);
+    }
+
+    public void reset() {
+        for (short i = 0; i < (short) pending.length; i++) {
+            pending[i] = 0;
+        }
+        Util.arrayFillNonAtomic(values, (short) 0, (short) values.length, (byte) 0);
+    }
+}
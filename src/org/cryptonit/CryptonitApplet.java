@@ -17,7 +17,6 @@ import javacard.security.KeyPair;
 import javacard.security.RSAPublicKey;
 import javacard.security.Signature;
 import javacardx.apdu.ExtendedLength;
-import javacardx.crypto.Cipher;
 
 /**
  * @author Mathias Brossard
@@ -26,19 +25,72 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
 
     private final OwnerPIN pin;
     private final OwnerPIN mgmt_counter;
-    private Key[] keys = null;
+    /* Key pair of each slot, allocated when a key is first generated */
+    private KeyPair[] pairs = null;
     private Key mgmt_key = null;
     private byte[] challenge = null;
     private boolean[] authenticated = null;
-    private Cipher rsa_cipher = null;
-    private Signature ec_signature = null;
+    private EnginePool engines = null;
     private RandomData random = null;
     private IOBuffer io = null;
+    private TLVDecoder decoder = null;
+    private FileIndex index = null;
+    private Counters counters = null;
+    /* PIV algorithm identifiers enabled by the install parameters */
+    private byte[] algorithms = null;
+    /* Answer to SELECT, built once */
+    private byte[] fci = null;
 
     private final static byte PIN_MAX_LENGTH = 8;
     private final static byte PIN_MAX_TRIES  = 5;
     private final static byte MGMT_MAX_TRIES = 3;
 
+    /* Longest TLV header around an RSA modulus */
+    private final static short RSA_HEADER_MAX = (short) 9;
+
+    /* Longest TLV headers around a signature: 7C 82 LL LL 82 82 LL LL */
+    private final static short SIGNATURE_HEADER_MAX = (short) 8;
+
+    /*
+     * Smallest transient workspace, enough for every response other than
+     * RSA public keys and results.
+     */
+    private final static short WORKSPACE_MIN = (short) 0x100;
+
+    /* Persistent storage shared by all data objects */
+    private final static short STORE_SIZE = (short) 0x3000;
+
+    /*
+     * Persistent scratch area for responses larger than the workspace. It
+     * caps the size of such a response (a batch of signatures, a long
+     * remainder): anything that does not fit is refused with 6A84. By
+     * default it holds the signatures of as many SHA-256 digests (tag 0x89,
+     * BATCH_ENTRY bytes each) as the workspace can carry next to the
+     * largest signature, up to SCRATCH_MAX.
+     */
+    private final static short SCRATCH_MAX = (short) 0x2000;
+    private final static short BATCH_ENTRY = (short) 34;
+
+    /* Smallest limit on the size of an object, above the default objects */
+    private final static short OBJECT_MIN = (short) 0x100;
+
+    /* Offset of the longest command data in the FCI */
+    private final static short FCI_COMMAND = (short) (Templates.FCI.length + 5);
+
+    /* PIV algorithm identifiers supported, all enabled by default */
+    private final static byte[] ALGORITHMS = {
+        (byte) 0x06, (byte) 0x07, (byte) 0x05, (byte) 0x16,
+        (byte) 0x11, (byte) 0x14
+    };
+
+    /* Tags of the install parameters */
+    private final static byte PROFILE_ALGORITHMS = (byte) 0x80;
+    private final static byte PROFILE_SLOTS      = (byte) 0x81;
+    private final static byte PROFILE_WORKSPACE  = (byte) 0x82;
+    private final static byte PROFILE_STORE      = (byte) 0x83;
+    private final static byte PROFILE_LARGEST    = (byte) 0x84;
+    private final static byte PROFILE_SCRATCH    = (byte) 0x85;
+
     public static final byte INS_GET_DATA                    = (byte) 0xCB;
     public static final byte INS_GET_RESPONSE                = (byte) 0xC0;
     public static final byte INS_PUT_DATA                    = (byte) 0xDB;
@@ -47,10 +99,154 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
     public static final byte INS_CHANGE_REFERENCE_DATA       = (byte) 0x24;
     public static final byte INS_GENERATE_ASYMMETRIC_KEYPAIR = (byte) 0x47;
 
+    /* Key reference of each key slot, the retired key management slots last */
+    private final static byte[] KEY_REFERENCES = {
+        (byte) 0x9A, (byte) 0x9C, (byte) 0x9D, (byte) 0x9E,
+        (byte) 0x82, (byte) 0x83, (byte) 0x84, (byte) 0x85,
+        (byte) 0x86, (byte) 0x87, (byte) 0x88, (byte) 0x89,
+        (byte) 0x8A, (byte) 0x8B, (byte) 0x8C, (byte) 0x8D,
+        (byte) 0x8E, (byte) 0x8F, (byte) 0x90, (byte) 0x91,
+        (byte) 0x92, (byte) 0x93, (byte) 0x94, (byte) 0x95
+    };
+    private final static byte RETIRED_FIRST = 4;
+
+    /*
+     * Slot of each key reference from '82' to '9E', the inverse of
+     * KEY_REFERENCES, 0xFF for references that are not key slots.
+     */
+    private final static byte[] SLOTS = {
+        (byte) 0x04, (byte) 0x05, (byte) 0x06, (byte) 0x07,
+        (byte) 0x08, (byte) 0x09, (byte) 0x0A, (byte) 0x0B,
+        (byte) 0x0C, (byte) 0x0D, (byte) 0x0E, (byte) 0x0F,
+        (byte) 0x10, (byte) 0x11, (byte) 0x12, (byte) 0x13,
+        (byte) 0x14, (byte) 0x15, (byte) 0x16, (byte) 0x17,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0x00, (byte) 0xFF, (byte) 0x01, (byte) 0x02,
+        (byte) 0x03
+    };
+
     public static final short SW_PIN_TRIES_REMAINING           = 0x63C0;
     public static final short SW_AUTHENTICATION_METHOD_BLOCKED = 0x6983;
 
+    /**
+     * The applet specific install parameters are an optional profile that
+     * sizes what is allocated at install time:
+     * - T:0x80 L:(n)  V:[PIV algorithm identifiers enabled]
+     * - T:0x81 L:0x01 V:[number of key slots: 9A, 9C, 9D, 9E then 82 to 95]
+     * - T:0x82 L:0x02 V:[transient workspace size]
+     * - T:0x83 L:0x02 V:[object store size]
+     * - T:0x84 L:0x02 V:[largest object accepted by PUT DATA]
+     * - T:0x85 L:0x02 V:[scratch area for responses larger than the workspace]
+     *
+     * Missing entries take the default values: every algorithm and slot,
+     * the workspace needed by the largest RSA key enabled, an object store
+     * of 12 KB and a scratch area sized for the largest batch of signatures
+     * the workspace accepts. The installation fails if the workspace is too
+     * small for the algorithms enabled.
+     */
     protected CryptonitApplet(byte[] bArray, short bOffset, byte bLength) {
+        byte slots = (byte) KEY_REFERENCES.length;
+        short workspace = 0;
+        short store = STORE_SIZE;
+        short largest = 0;
+        short scratch = -1;
+
+        /* Installation data: AID, control information and applet data */
+        short off = bOffset;
+        short end = (short) (bOffset + (bLength & 0xFF));
+        if (bLength != 0) {
+            /* Each length byte must be there, each value within the data */
+            for (short i = 0; i < 3; i++) {
+                if ((off >= end)
+                        || ((short) (off + 1 + (bArray[off] & 0xFF)) > end)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                if (i < 2) {
+                    off += (short) (1 + (bArray[off] & 0xFF));
+                }
+            }
+            end = (short) (off + 1 + (bArray[off] & 0xFF));
+            off++;
+        }
+        while (off < end) {
+            byte tag = bArray[off++];
+            short l = (short) (bArray[off++] & 0xFF);
+            if ((l > 127) || ((short) (off + l) > end)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            if (tag == PROFILE_ALGORITHMS) {
+                for (short i = 0; i < l; i++) {
+                    if (indexOf(ALGORITHMS, bArray[(short) (off + i)]) < 0) {
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                    }
+                }
+                algorithms = new byte[l];
+                Util.arrayCopyNonAtomic(bArray, off, algorithms, (short) 0, l);
+            } else if ((tag == PROFILE_SLOTS) && (l == 1)) {
+                slots = bArray[off];
+            } else if ((tag == PROFILE_WORKSPACE) && (l == 2)) {
+                workspace = Util.getShort(bArray, off);
+            } else if ((tag == PROFILE_STORE) && (l == 2)) {
+                store = Util.getShort(bArray, off);
+            } else if ((tag == PROFILE_LARGEST) && (l == 2)) {
+                largest = Util.getShort(bArray, off);
+            } else if ((tag == PROFILE_SCRATCH) && (l == 2)) {
+                scratch = Util.getShort(bArray, off);
+            } else {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            off += l;
+        }
+        if (algorithms == null) {
+            algorithms = new byte[(short) ALGORITHMS.length];
+            Util.arrayCopyNonAtomic(ALGORITHMS, (short) 0, algorithms, (short) 0,
+                    (short) ALGORITHMS.length);
+        }
+
+        /*
+         * The value of a chained request with the largest RSA block enabled,
+         * followed by its response (8 bytes of headers), must fit in the
+         * workspace at the same time.
+         */
+        short n = 0, signature = 0;
+        boolean rsa = false, ec = false;
+        for (short i = 0; i < (short) algorithms.length; i++) {
+            short m = modulusLength(algorithms[i]);
+            if (m > n) {
+                n = m;
+            }
+            short l = signatureLength(algorithms[i]);
+            if (l > signature) {
+                signature = l;
+            }
+            rsa |= (m != 0);
+            ec |= (m == 0);
+        }
+        short required = (short) (2 * n + RSA_HEADER_MAX);
+        if (required < WORKSPACE_MIN) {
+            required = WORKSPACE_MIN;
+        }
+        if (workspace == 0) {
+            workspace = required;
+        }
+        if (largest == 0) {
+            largest = store;
+        }
+        if ((scratch < 0) && (workspace >= required)) {
+            /* Signatures of a batch filling the workspace, with their headers */
+            short count = (short) ((short) (workspace - signature - 8) / BATCH_ENTRY);
+            short entry = (short) (signature + 4);
+            if (count > (short) ((short) (SCRATCH_MAX - IOBuffer.SCRATCH_HEADER) / entry)) {
+                count = (short) ((short) (SCRATCH_MAX - IOBuffer.SCRATCH_HEADER) / entry);
+            }
+            scratch = (short) (IOBuffer.SCRATCH_HEADER + count * entry);
+        }
+        if ((slots < 1) || (slots > (byte) KEY_REFERENCES.length)
+                || (workspace < required) || (largest < OBJECT_MIN) || (largest > store)
+                || (scratch < 0)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
         mgmt_key = KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
                 KeyBuilder.LENGTH_DES3_3KEY, false);
         ((DESKey) mgmt_key).setKey(new byte[]{
@@ -69,28 +265,113 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
             0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
         }, (short) 0, (byte) 8);
 
-        keys = new Key[(byte) 4];
+        pairs = new KeyPair[slots];
         random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-        authenticated = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
-        rsa_cipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
-        try {
-            ec_signature = Signature.getInstance(Signature.ALG_ECDSA_SHA, false);
-        } catch (Exception e) {
-        }
-        FileIndex index = new FileIndex();
-        io = new IOBuffer(index);
+        /* [0]: PIN or management key verified, [1]: management key only */
+        authenticated = JCSystem.makeTransientBooleanArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+        engines = new EnginePool(rsa, ec);
+        counters = new Counters(slots);
+        index = new FileIndex(store, largest);
+        io = new IOBuffer(index, counters, workspace, scratch);
+        decoder = new TLVDecoder(io.getBuffer(), (byte) 0x7C, Templates.AUTHENTICATE_TAGS);
+        setAlgorithms();
+        setFCI();
         register();
     }
 
+    /*
+     * Supported Algorithms object ('5FFF01'), for each EC algorithm enabled:
+     * - T:0x80 L:0x01 V:[PIV algorithm identifier]
+     * - T:0x81 L:(n)  V:[hash lengths signed without truncation]
+     */
+    private void setAlgorithms() {
+        byte[] buf = io.getBuffer();
+        short off = 2;
+
+        for (short i = 0; i < (short) Templates.EC_ALGORITHMS.length; i += 2) {
+            if (indexOf(algorithms, Templates.EC_ALGORITHMS[i]) < 0) {
+                continue;
+            }
+            buf[off++] = (byte) 0x80;
+            buf[off++] = (byte) 0x01;
+            buf[off++] = Templates.EC_ALGORITHMS[i];
+            buf[off++] = (byte) 0x81;
+            short l = off++;
+            for (short j = 0; j < (short) Templates.HASH_LENGTHS.length; j++) {
+                short h = Templates.HASH_LENGTHS[j];
+                if ((h <= Templates.EC_ALGORITHMS[(short) (i + 1)])
+                        && engines.hasECDSA(h)) {
+                    buf[off++] = (byte) h;
+                }
+            }
+            buf[l] = (byte) (off - l - 1);
+        }
+        buf[0] = (byte) 0x53;
+        buf[1] = (byte) (off - 2);
+        index.setDefault(FileIndex.ALGORITHMS, buf, (short) 0, off);
+    }
+
     public static void install(byte[] bArray, short bOffset, byte bLength) {
         new CryptonitApplet(bArray, bOffset, bLength);
     }
 
+    /* Index of a byte in an array, -1 if it is not there */
+    private static short indexOf(byte[] array, byte value) {
+        for (short i = 0; i < (short) array.length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Largest signature made with a PIV algorithm identifier: the modulus
+     * length for RSA, a DER sequence of two integers with a sign byte each
+     * for ECDSA.
+     */
+    private static short signatureLength(byte algorithm) {
+        switch (algorithm) {
+            case 0x11:
+                return (short) (2 * 32 + 8);
+            case 0x14:
+                return (short) (2 * 48 + 8);
+            default:
+                return modulusLength(algorithm);
+        }
+    }
+
+    /* Modulus length in bytes of an RSA algorithm, 0 for other algorithms */
+    private static short modulusLength(byte algorithm) {
+        switch (algorithm) {
+            case 0x06:
+                return 128;
+            case 0x07:
+                return 256;
+            case 0x05:
+                return 384;
+            case 0x16:
+                return 512;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void deselect() {
+        counters.flush();
+    }
+
     @Override
     public void process(APDU apdu) {
         byte buffer[] = apdu.getBuffer();
         byte ins = buffer[ISO7816.OFFSET_INS];
 
+        counters.call(ins);
+        if (ins != INS_GENERAL_AUTHENTICATE) {
+            decoder.reset();
+        }
+
         if (apdu.isSecureMessagingCLA()) {
             ISOException.throwIt(ISO7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
         }
@@ -126,54 +407,72 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         }
     }
 
+    /* Receives the command data, counted as incoming bytes */
+    private short receive(APDU apdu) {
+        short lc = apdu.setIncomingAndReceive();
+        counters.add(Counters.BYTES_IN, lc);
+        return lc;
+    }
+
     private void doSelect(APDU apdu) throws ISOException {
         byte[] buf = apdu.getBuffer();
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
 
-        final byte[] apt = {
-            /* Application property template */
-            (byte) 0x61, (byte) 0x16,
-            /* - Application identifier of application */
-            (byte) 0x4F, (byte) 0x0B,
-            (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08,
-            (byte) 0x00, (byte) 0x00, (byte) 0x10, (byte) 0x00, (byte) 0x01,
-            (byte) 0x00,
-            /* - Coexistent tag allocation authority */
-            (byte) 0x79, (byte) 0x07,
-            /*   - Application identifier */
-            (byte) 0x4F, (byte) 0x05,
-            (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08
-        };
-
         if ((p1 == (byte) 0x04) && (p2 == (byte) 0x00)) {
-            short l = apdu.setIncomingAndReceive();
+            short l = receive(apdu);
             short offset = apdu.getOffsetCdata();
 
-            final byte[] aid1 = {
-                (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08
-            };
-            final byte[] aid2 = {
-                (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03,
-                (byte) 0x08, (byte) 0x00, (byte) 0x00, (byte) 0x10,
-                (byte) 0x00
-            };
-            if (((l == (short) aid1.length)
-                    && (Util.arrayCompare(buf, offset, aid1, (byte) 0, (byte) aid1.length) == 0))
-                    || ((l == (short) aid2.length)
-                    && (Util.arrayCompare(buf, offset, aid2, (byte) 0, (byte) aid2.length) == 0))) {
-                io.sendBuffer(apt, (short) apt.length, apdu);
+            if (((l == Templates.PIV_AID_SHORT) || (l == Templates.PIV_AID_LONG))
+                    && (Util.arrayCompare(buf, offset, Templates.PIV_AID, (short) 0, l) == 0)) {
+                sendFCI(apdu, buf);
                 return;
             }
         }
         ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
     }
 
+    /*
+     * The FCI ends with the extended length information, so that hosts
+     * know how much can be sent and received in a single APDU.
+     * T:0x7F,0x66 L:0x08
+     * - T:0x02 L:0x02 V:[longest command data, limited by the APDU buffer]
+     * - T:0x02 L:0x02 V:[longest response data]
+     */
+    private void setFCI() {
+        short l = (short) Templates.FCI.length;
+        fci = new byte[(short) (l + 11)];
+        Util.arrayCopyNonAtomic(Templates.FCI, (short) 0, fci, (short) 0, l);
+        fci[l++] = (byte) 0x7F;
+        fci[l++] = (byte) 0x66;
+        fci[l++] = (byte) 0x08;
+        fci[l++] = (byte) 0x02;
+        fci[l++] = (byte) 0x02;
+        /* Longest command data, set by the first SELECT */
+        l += 2;
+        fci[l++] = (byte) 0x02;
+        fci[l++] = (byte) 0x02;
+        l = Util.setShort(fci, l, IOBuffer.MAX_EXTENDED_LE);
+        fci[1] = (byte) (l - 2);
+    }
+
+    private void sendFCI(APDU apdu, byte[] buf) {
+        /* The APDU buffer is only known once a command arrives */
+        if (Util.getShort(fci, FCI_COMMAND) == 0) {
+            short c = (short) (buf.length - ISO7816.OFFSET_EXT_CDATA);
+            if ((c < 0) || (c > IOBuffer.MAX_EXTENDED_LE)) {
+                c = IOBuffer.MAX_EXTENDED_LE;
+            }
+            Util.setShort(fci, FCI_COMMAND, c);
+        }
+        io.sendBuffer(fci, (short) fci.length, apdu);
+    }
+
     private void doVerifyPin(APDU apdu) throws ISOException {
         byte[] buf = apdu.getBuffer();
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
-        short lc = apdu.setIncomingAndReceive();
+        short lc = receive(apdu);
 
         if ((p1 != (byte) 0x00 && p1 != (byte) 0xFF) || (p2 != (byte) 0x80)) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
@@ -209,7 +508,7 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         byte[] buf = apdu.getBuffer();
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
-        short lc = apdu.setIncomingAndReceive();
+        short lc = receive(apdu);
         short off = apdu.getOffsetCdata();
 
         if (p1 != (byte) 0x00 || (p2 != (byte) 0x80)) {
@@ -240,43 +539,89 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         pin.update(buf, (short) (off + 8), (byte) 8);
     }
 
+    /*
+     * P1-P2 is 0x3FFF to read an object from the start. As a vendor
+     * extension, a P1 below 0x80 other than 0x3F gives the offset at which
+     * to start reading: at most Le bytes are then returned, without GET
+     * RESPONSE chaining. Any other P1-P2 is refused with 6A86.
+     */
     private void doGetData(APDU apdu) throws ISOException {
         byte[] buf = apdu.getBuffer();
-        byte p1 = buf[ISO7816.OFFSET_P1];
-        byte p2 = buf[ISO7816.OFFSET_P2];
-        short lc = apdu.setIncomingAndReceive();
+        short start = Util.getShort(buf, ISO7816.OFFSET_P1);
+        short lc = receive(apdu);
         short offset = apdu.getOffsetCdata();
+        boolean chain = true;
 
-        if (p1 != (byte) 0x3F || p2 != (byte) 0xFF) {
+        if (start == (short) 0x3FFF) {
+            start = 0;
+        } else if ((start < 0) || (buf[ISO7816.OFFSET_P1] == (byte) 0x3F)) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        } else {
+            chain = false;
         }
         if (lc != apdu.getIncomingLength()) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
-        if (buf[offset] != (byte) 0x5C) {
+        if ((lc < 3) || (buf[offset] != (byte) 0x5C)
+                || (buf[(short) (offset + 1)] != (byte) (lc - 2))) {
             ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
         }
-        if (buf[(short) (offset + 1)] == 0x1) {
-            if (buf[(short) (offset + 2)] == (byte) 0x7E) {
-                io.sendFile(FileIndex.DISCOVERY, apdu, (short) 0);
-                return;
-            }
-        } else if (buf[(short) (offset + 1)] == 0x3) {
-            if ((buf[(short) (offset + 2)] != (byte) 0x5F)
-                    || (buf[(short) (offset + 3)] != (byte) 0xC1)
-                    || (buf[(short) (offset + 4)] == (byte) 0x4)
-                    || (buf[(short) (offset + 4)] > (byte) 0xA)) {
-                ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
-            }
-            byte id = (byte) (buf[(byte) (offset + 4)] - 1);
-            if (((id == (byte) 0x2) || (id == (byte) 0x7)
-                    || (id == (byte) 0x8)) && !authenticated[0]) {
-                ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        short id = index.getIndex(buf, (short) (offset + 2), (short) (lc - 2));
+        if (id < 0) {
+            ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+        }
+        if ((index.entries[id].access == FileIndex.ACCESS_PIN) && !authenticated[0]) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (id == FileIndex.COUNTERS) {
+            if (!chain) {
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
             }
-            io.sendFile(id, apdu, (short) 0);
+            sendCounters(apdu);
             return;
         }
-        ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+        io.sendFile(id, apdu, start, chain);
+    }
+
+    /*
+     * Performance Counters object ('5FFF02'), counts are 4-byte big-endian
+     * - T:0xA0 L:(variable) V:[INS, count] per command, INS 0xFF for others
+     * - T:0x81 L:0x04       V:[bytes of command data received]
+     * - T:0x82 L:0x04       V:[bytes of response data sent]
+     * - T:0x83 L:0x04       V:[GET RESPONSE served]
+     * - T:0x84 L:0x04       V:[chained requests completed]
+     * - T:0x85 L:0x04       V:[key pairs allocated]
+     * - T:0xA6 L:(variable) V:[key reference, count] private key operations
+     *
+     * The content is written after room for the '53' header, which is put
+     * in front of it once its length is known.
+     */
+    private void sendCounters(APDU apdu) {
+        byte[] buf = io.getBuffer();
+        short off = 6;
+
+        counters.flush();
+        buf[off++] = (byte) 0xA0;
+        off = BERTLV.encodeLength(buf, off, (short) (Counters.INS.length * 5));
+        for (short i = 0; i < (short) Counters.INS.length; i++) {
+            buf[off++] = Counters.INS[i];
+            off = counters.get((short) (Counters.CALLS + i), buf, off);
+        }
+        for (short i = Counters.BYTES_IN; i < Counters.OPERATIONS; i++) {
+            buf[off++] = (byte) (0x81 + i - Counters.BYTES_IN);
+            buf[off++] = (byte) 0x04;
+            off = counters.get(i, buf, off);
+        }
+        buf[off++] = (byte) 0xA6;
+        off = BERTLV.encodeLength(buf, off, (short) (pairs.length * 5));
+        for (short i = 0; i < (short) pairs.length; i++) {
+            buf[off++] = KEY_REFERENCES[i];
+            off = counters.get((short) (Counters.OPERATIONS + i), buf, off);
+        }
+
+        short start = BERTLV.prependHeader(buf, (short) 6, (byte) 0x53, (short) (off - 6));
+        io.sendBuffer(buf, start, (short) (off - start), apdu);
     }
 
     private void doPutData(APDU apdu) throws ISOException {
@@ -284,9 +629,9 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
         byte cla = buf[ISO7816.OFFSET_CLA];
-        short lc = apdu.setIncomingAndReceive();
+        short lc = receive(apdu);
         short offset = apdu.getOffsetCdata();
-        byte id;
+        short id;
 
         if (p1 != (byte) 0x3F || p2 != (byte) 0xFF) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
@@ -300,10 +645,11 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
 
-        if (io.isLoaded()) {
+        if (io.isReceivingFile()) {
             io.receiveFile(buf, offset, lc);
             if (cla == 0x00) {
-                io.clear();
+                io.commitFile();
+                counters.increment(Counters.CHAINED);
             }
             ISOException.throwIt(ISO7816.SW_NO_ERROR);
         }
@@ -312,62 +658,96 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
+        /*
+         * Objects are addressed by a tag list (5C) followed by their value
+         * (53), except the Discovery Object and the BIT Group Template that
+         * are written directly with their own tag.
+         */
+        short end = (short) (offset + lc);
+        short tl = 1;
         if (buf[offset] == (byte) 0x5C) {
-            if ((buf[(short) (offset + 1)] != (byte) 0x03)
-                    || (buf[(short) (offset + 2)] != (byte) 0x5F)
-                    || (buf[(short) (offset + 3)] != (byte) 0xC1)) {
-                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            short n = buf[(short) (offset + 1)];
+            if ((n < 0) || (n > (short) (lc - 2))) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            id = index.getIndex(buf, (short) (offset + 2), n);
+            if (id == FileIndex.COUNTERS) {
+                resetCounters(cla, buf, (short) (offset + 2 + n), end);
+                return;
             }
-            id = (byte) (buf[(short) (offset + 4)] - 1);
-            if ((id == (byte) 0x03)
-                    || (id > (byte) 0x0A)) {
+            if ((id < 0) || (id >= FileIndex.DISCOVERY)) {
                 ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
             }
-            offset += 5;
-        } else if (buf[offset] == (byte) 0x7E) {
-            id = FileIndex.DISCOVERY;
-            offset += 1;
+            offset += (short) (2 + n);
+            if ((offset >= end) || (buf[offset] != (byte) 0x53)) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
         } else {
-            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
-            return;
-        }
-        if (buf[offset] != (byte) 0x53) {
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            if (buf[offset] == (byte) 0x7F) {
+                tl = 2;
+            }
+            id = index.getIndex(buf, offset, tl);
+            if (id < 0) {
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
         }
 
-        BERTLV btlv = new BERTLV(buf, (short) (offset + 1),
-                (short) (apdu.getOffsetCdata() + lc));
-        short l = btlv.readLength();
-        short off = btlv.getOffset();
+        /* The whole header must be in this command, before anything is reserved */
+        short off = BERTLV.checkLength(buf, (short) (offset + tl), end);
+        short l = BERTLV.decodeLength(buf, (short) (offset + tl));
+        if (l < 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
 
         io.createFile(id, (short) (l + (off - offset)));
         io.receiveFile(buf, offset, (short) (lc - (offset - apdu.getOffsetCdata())));
 
         if (cla == 0x00) {
-            io.clear();
+            io.commitFile();
         }
     }
 
-    private static byte keyMapping(byte keyRef) {
-        switch (keyRef) {
-            case (byte) 0x9A:
-                return 0;
-            case (byte) 0x9C:
-                return 1;
-            case (byte) 0x9D:
-                return 2;
-            case (byte) 0x9E:
-                return 3;
-            default:
-                return (byte) 0xFF;
+    /*
+     * Writing an empty value ('53 00') to the Performance Counters object
+     * resets them, this requires the management key.
+     */
+    private void resetCounters(byte cla, byte[] buf, short offset, short end) {
+        if (!authenticated[1]) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if ((cla != 0x00) || ((short) (offset + 2) != end)
+                || (buf[offset] != (byte) 0x53)
+                || (buf[(short) (offset + 1)] != (byte) 0x00)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
+        counters.reset();
+    }
+
+    /* Slot of a key reference, 0xFF if there is no such slot on this card */
+    private byte keyMapping(byte keyRef) {
+        short i = (short) ((keyRef & 0xFF) - 0x82);
+
+        if ((i < 0) || (i >= (short) SLOTS.length)) {
+            return (byte) 0xFF;
+        }
+        byte id = SLOTS[i];
+        return ((id >= 0) && (id < (byte) pairs.length)) ? id : (byte) 0xFF;
+    }
+
+    /* Private key of a slot, null until a key was generated in it */
+    private Key privateKey(short id) {
+        KeyPair kp = pairs[id];
+        if ((kp == null) || !kp.getPrivate().isInitialized()) {
+            return null;
+        }
+        return kp.getPrivate();
     }
 
     private void doGenerateKeyPair(APDU apdu) throws ISOException {
         byte[] buf = apdu.getBuffer();
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
-        short lc = apdu.setIncomingAndReceive();
+        short lc = receive(apdu);
         short offset = apdu.getOffsetCdata();
 
         if ((p1 != (byte) 0x00) || (keyMapping(p2) == (byte) 0xFF)) {
@@ -379,15 +759,27 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         if ((lc != apdu.getIncomingLength()) || (lc < 5)) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
-        if (Util.arrayCompare(buf, offset, new byte[]{
-            (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01
-        }, (byte) 0, (byte) 4) != 0) {
+        if (Util.arrayCompare(buf, offset, Templates.KEY_ALGORITHM, (short) 0,
+                (short) Templates.KEY_ALGORITHM.length) != 0) {
             ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
+        if (indexOf(algorithms, buf[(short) (offset + 4)]) < 0) {
+            ISOException.throwIt((indexOf(ALGORITHMS, buf[(short) (offset + 4)]) < 0)
+                    ? ISO7816.SW_WRONG_DATA : ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
 
         switch (buf[(short) (offset + 4)]) {
+            case 0x06: // RSA: 1024
+                doGenRSA(apdu, buf[ISO7816.OFFSET_P2], (short) 1024);
+                break;
             case 0x07: // RSA: 2048
-                doGenRSA(apdu, buf[ISO7816.OFFSET_P2]);
+                doGenRSA(apdu, buf[ISO7816.OFFSET_P2], (short) 2048);
+                break;
+            case 0x05: // RSA: 3072
+                doGenRSA(apdu, buf[ISO7816.OFFSET_P2], (short) 3072);
+                break;
+            case 0x16: // RSA: 4096
+                doGenRSA(apdu, buf[ISO7816.OFFSET_P2], (short) 4096);
                 break;
             case 0x11: // ECC: Curve P-256
                 doGenEC(apdu, buf[ISO7816.OFFSET_P2], (short) 256);
@@ -401,107 +793,150 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         }
     }
 
+    /*
+     * RSA public key
+     * T:0x7F,0x49 L:(variable)
+     * - T:0x81 L:(variable) V:[RSA Modulus]
+     * - T:0x82 L:0x03       V:[RSA Exponent  3 bytes]
+     *
+     * The modulus is written first, after room for the longest header, and
+     * the header is then put in front of it once its lengths are known.
+     */
     private void sendRSAPublicKey(APDU apdu, RSAPublicKey key) {
-        // T:0x7F,0x49 L:0x82,0x01,09 (265)
-        // - T:0x81 L:0x82,0x01,0x00  (256) V:[RSA Modulus 256 bytes]
-        // - T:0x82 L:0x03              (3) V:[RSA Exponent  3 bytes]
-        short off = 0;
-        byte[] buf = new byte[271];
-        byte[] header = new byte[]{
-            (byte) 0x7F, (byte) 0x49, (byte) 0x82, (byte) 0x01, (byte) 0x09,
-            (byte) 0x81, (byte) 0x82, (byte) 0x01, (byte) 0x00
-        };
-
-        Util.arrayCopy(header, (short) 0, buf, (short) 0, (short) header.length);
-        off += header.length;
-        short l = key.getModulus(buf, off);
-        if (l > 0x0100) {
-            buf[(short) 0x04] = (byte) (l - 0x0100 + 9);
-            buf[(short) 0x08] = (byte) (l - 0x0100);
-        }
-        off += l;
-        buf[off++] = (byte) 0x82;
-        buf[off++] = (byte) 0x03;
-        off += key.getExponent(buf, off);
-        io.sendBuffer(buf, off, apdu);
-    }
-
-    private void doGenRSA(APDU apdu, byte keyRef) {
-        KeyPair kp = null;
-        byte id = keyMapping(keyRef);
+        short off = RSA_HEADER_MAX;
+        byte[] buf = io.getBuffer();
+
+        short n = key.getModulus(buf, off);
+        off += n;
+        short e = key.getExponent(buf, (short) (off + 2));
+        off = BERTLV.encodeHeader(buf, off, (byte) 0x82, e);
+        off += e;
+
+        /* Headers are put in front of the modulus once lengths are known */
+        short start = BERTLV.prependHeader(buf, RSA_HEADER_MAX, (byte) 0x81, n);
+        start = BERTLV.prependHeader(buf, start, (byte) 0x49, (short) (off - start));
+        buf[--start] = (byte) 0x7F;
+        io.sendBuffer(buf, start, (short) (off - start), apdu);
+    }
+
+    /**
+     * Returns the key pair of a slot for the given algorithm and size. The
+     * key objects of a slot are regenerated in place as long as they match,
+     * otherwise they are replaced and the old ones reclaimed, once the new
+     * ones could be allocated. The engines forget the private key since its
+     * value is about to change.
+     */
+    private KeyPair getKeyPair(byte id, byte algorithm, byte type, short size) {
+        KeyPair kp = pairs[id];
+
+        if ((kp != null) && (kp.getPrivate().getType() == type)
+                && (kp.getPrivate().getSize() == size)) {
+            engines.invalidate(kp.getPrivate());
+            return kp;
+        }
 
+        KeyPair old = kp;
         try {
-            kp = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+            kp = new KeyPair(algorithm, size);
+            counters.increment(Counters.ALLOCATIONS);
         } catch (CryptoException e) {
             if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
                 ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
             }
             ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
-
-        if (kp == null) {
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
-            return;
+        pairs[id] = kp;
+
+        /* The old pair is only released once its replacement exists */
+        if (old != null) {
+            engines.invalidate(old.getPrivate());
+            old.getPrivate().clearKey();
+            if (JCSystem.isObjectDeletionSupported()) {
+                JCSystem.requestObjectDeletion();
+            }
         }
+        return kp;
+    }
+
+    private void doGenRSA(APDU apdu, byte keyRef, short size) {
+        byte id = keyMapping(keyRef);
+        KeyPair kp = getKeyPair(id, KeyPair.ALG_RSA_CRT,
+                KeyBuilder.TYPE_RSA_CRT_PRIVATE, size);
 
         kp.genKeyPair();
-        if (keys[id] != null) {
-            keys[id].clearKey();
-        }
-        keys[id] = kp.getPrivate();
         sendRSAPublicKey(apdu, (RSAPublicKey) kp.getPublic());
     }
 
+    /*
+     * EC public key, built in the APDU buffer
+     * T:0x7F,0x49 L:(W + 2)
+     * - T:0x86 L:(W) V:[EC point, 65 bytes for P-256, 97 for P-384]
+     */
     private void sendECPublicKey(APDU apdu, ECPublicKey key) {
-        // T:0x7F,0x49 L:0x43          (67)
-        // - T:0x86 L:0x41             (65) V:[EC Point     65 bytes]
-        byte buf[] = new byte[70];
-        Util.arrayCopy(new byte[]{
-            (byte) 0x7F, (byte) 0x49, (byte) 0x43, (byte) 0x86, (byte) 0x41
-        }, (short) 0, buf, (short) 0, (short) 5);
-        key.getW(buf, (short) 5);
-        io.sendBuffer(buf, (short) buf.length, apdu);
+        short off = (short) 5;
+        byte buf[] = apdu.getBuffer();
+
+        short l = key.getW(buf, off);
+        short start = BERTLV.prependHeader(buf, off, (byte) 0x86, l);
+        start = BERTLV.prependHeader(buf, start, (byte) 0x49, (short) (l + 2));
+        buf[--start] = (byte) 0x7F;
+        io.sendBuffer(buf, start, (short) (off + l - start), apdu);
     }
 
     private void doGenEC(APDU apdu, byte keyRef, short size) {
-        KeyPair kp = null;
         byte id = keyMapping(keyRef);
 
-        if (ec_signature == null) {
+        if (!engines.hasECDSA()) {
             ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
         }
 
-        try {
-            kp = new KeyPair(KeyPair.ALG_EC_FP, size);
-        } catch (CryptoException e) {
-            if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
-                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
-            }
-            ISOException.throwIt(ISO7816.SW_UNKNOWN);
-        }
-        if (kp != null) {
-            kp.genKeyPair();
-            if (keys[id] != null) {
-                keys[id].clearKey();
-            }
-            keys[id] = kp.getPrivate();
-            sendECPublicKey(apdu, (ECPublicKey) kp.getPublic());
-        }
-    }
+        KeyPair kp = getKeyPair(id, KeyPair.ALG_EC_FP,
+                KeyBuilder.TYPE_EC_FP_PRIVATE, size);
 
-    public static short lengthLength(short l) {
-        return (short) ((l < 128) ? 1 : ((l < 256) ? 2 : 3));
+        kp.genKeyPair();
+        sendECPublicKey(apdu, (ECPublicKey) kp.getPublic());
     }
 
-    public static short getTag(byte[] buf, short offset, short length, byte tag) {
-        short off = offset;
-        short end = (short) (off + length - 1);
+    /*
+     * Builds an EMSA-PKCS1-v1_5 block of n bytes in out at offset c:
+     * 00 01 FF .. FF 00 [DigestInfo]
+     * A SHA-1, SHA-256, SHA-384 or SHA-512 hash is given its DigestInfo
+     * header, any other value is taken as a complete DigestInfo.
+     */
+    private static void padPKCS1(byte[] buf, short m, short k,
+            byte[] out, short c, short n) {
+        byte[] prefix = null;
+
+        switch (k) {
+            case 20:
+                prefix = Templates.DIGEST_INFO_SHA1;
+                break;
+            case 32:
+                prefix = Templates.DIGEST_INFO_SHA256;
+                break;
+            case 48:
+                prefix = Templates.DIGEST_INFO_SHA384;
+                break;
+            case 64:
+                prefix = Templates.DIGEST_INFO_SHA512;
+                break;
+        }
 
-        while ((off < end) && (buf[off] != tag)) {
-            short l = BERTLV.decodeLength(buf, (short) (off + 1));
-            off += lengthLength(l) + l + 1;
+        short p = (prefix == null) ? 0 : (short) prefix.length;
+        short t = (short) (p + k);
+        if ((k <= 0) || (t > (short) (n - 11))) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
-        return off;
+
+        short d = (short) (c + n - k);
+        Util.arrayCopyNonAtomic(buf, m, out, d, k);
+        if (p != 0) {
+            Util.arrayCopyNonAtomic(prefix, (short) 0, out, (short) (d - p), p);
+        }
+        out[c] = (byte) 0x00;
+        out[(short) (c + 1)] = (byte) 0x01;
+        Util.arrayFillNonAtomic(out, (short) (c + 2), (short) (n - t - 3), (byte) 0xFF);
+        out[(short) (c + n - t - 1)] = (byte) 0x00;
     }
 
     private void doGeneralAuthenticate(APDU apdu) throws ISOException {
@@ -509,7 +944,8 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
 
-        if ((p1 == (byte) 0x07 || p1 == (byte) 0x11 || p1 == (byte) 0x14)
+        if ((p1 == (byte) 0x06 || p1 == (byte) 0x07 || p1 == (byte) 0x05
+                || p1 == (byte) 0x16 || p1 == (byte) 0x11 || p1 == (byte) 0x14)
                 && (keyMapping(p2) != (byte) 0xFF)) {
             doPrivateKeyOperation(apdu);
         } else if ((p1 == (byte) 0x00 || p1 == (byte) 0x03)
@@ -522,25 +958,20 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
 
     private void doAuthenticate(APDU apdu) throws ISOException {
         byte[] buf = apdu.getBuffer();
-        short lc = apdu.setIncomingAndReceive();
+        decoder.reset();
+        short lc = receive(apdu);
         short offset = apdu.getOffsetCdata();
 
-        if ((lc == (short) 4) && (Util.arrayCompare(buf, offset, new byte[]{
-            (byte) 0x7C, (byte) 0x02, (byte) 0x80, (byte) 0x00
-        }, (short) 0, (short) 4) == (short) 0)) {
-            Cipher cipher = Cipher.getInstance(Cipher.ALG_DES_ECB_NOPAD, false);
-            byte[] out = new byte[12];
-            Util.arrayCopy(new byte[]{
-                (byte) 0x7C, (byte) 0x0A, (byte) 0x80, (byte) 0x08
-            }, (short) 0, out, (short) 0, (short) 4);
+        if ((lc == (short) 4) && (Util.arrayCompare(buf, offset,
+                Templates.WITNESS_REQUEST, (short) 0, (short) 4) == (short) 0)) {
+            Util.arrayCopyNonAtomic(Templates.WITNESS_RESPONSE, (short) 0,
+                    buf, (short) 0, (short) 4);
 
             random.generateData(challenge, (short) 0, (short) 8);
-            cipher.init(mgmt_key, Cipher.MODE_ENCRYPT);
-            cipher.doFinal(challenge, (short) 0, (short) 8, out, (short) 4);
-            io.sendBuffer(out, (short) 12, apdu);
-        } else if ((lc == (short) 22) && (Util.arrayCompare(buf, offset, new byte[]{
-            (byte) 0x7C, (byte) 0x14, (byte) 0x80, (byte) 0x08
-        }, (short) 0, (short) 4) == (short) 0)) {
+            engines.encryptDES(mgmt_key, challenge, (short) 0, buf, (short) 4);
+            io.sendBuffer(buf, (short) 12, apdu);
+        } else if ((lc == (short) 22) && (Util.arrayCompare(buf, offset,
+                Templates.CHALLENGE_REQUEST, (short) 0, (short) 4) == (short) 0)) {
             if (mgmt_counter.getTriesRemaining() == 0) {
                 ISOException.throwIt(SW_AUTHENTICATION_METHOD_BLOCKED);
             }
@@ -548,22 +979,20 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
                     challenge, (short) 0, (short) 8) == 0) {
                 mgmt_counter.resetAndUnblock();
                 authenticated[0] = true;
+                authenticated[1] = true;
 
                 if ((buf[(short) (offset + 0x0C)] == (byte) 0x81)
                         && (buf[(short) (offset + 0x0D)] == (byte) 0x08)) {
-                    Cipher cipher = Cipher.getInstance(Cipher.ALG_DES_ECB_NOPAD, false);
-                    byte[] out = new byte[12];
-                    Util.arrayCopy(new byte[]{
-                        (byte) 0x7C, (byte) 0x0A, (byte) 0x82, (byte) 0x08
-                    }, (short) 0, out, (short) 0, (short) 4);
-
-                    cipher.init(mgmt_key, Cipher.MODE_ENCRYPT);
-                    cipher.doFinal(buf, (short) (offset + 0x0E), (short) 8, out, (short) 4);
-                    io.sendBuffer(out, (short) 12, apdu);
+                    Util.arrayCopyNonAtomic(Templates.CHALLENGE_RESPONSE, (short) 0,
+                            buf, (short) 0, (short) 4);
+
+                    engines.encryptDES(mgmt_key, buf, (short) (offset + 0x0E), buf, (short) 4);
+                    io.sendBuffer(buf, (short) 12, apdu);
                 }
             } else {
                 authenticated[0] = false;
-                mgmt_counter.check(new byte[]{0x01, 0x01, 0x01, 0x01}, (short) 0, (byte) 4);
+                authenticated[1] = false;
+                mgmt_counter.check(Templates.MGMT_COUNTER_MISMATCH, (short) 0, (byte) 4);
                 ISOException.throwIt((short) (SW_PIN_TRIES_REMAINING
                         | mgmt_counter.getTriesRemaining()));
             }
@@ -576,11 +1005,12 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
         byte[] buf = apdu.getBuffer();
         byte cla = buf[ISO7816.OFFSET_CLA];
         byte p2 = buf[ISO7816.OFFSET_P2];
-        short lc = apdu.setIncomingAndReceive();
+        short lc = receive(apdu);
         short offset = apdu.getOffsetCdata();
         short id = keyMapping(p2);
+        Key key = privateKey(id);
 
-        if (keys[id] == null) {
+        if (key == null) {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
 
@@ -588,76 +1018,198 @@ public class CryptonitApplet extends Applet implements ExtendedLength {
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
         }
 
+        /*
+         * Each chunk is decoded as it arrives and only the value of tag 81,
+         * 85, 89 or 8A is kept: in the APDU buffer when it comes with the last
+         * chunk, otherwise at the start of the workspace.
+         */
+        boolean chained = decoder.isStarted();
+        if (!chained) {
+            io.clear();
+            decoder.start();
+        }
+        decoder.feed(buf, offset, lc, cla == 0x00);
         if (cla == 0x10) {
-            io.receiveBuffer(buf, offset, lc);
             ISOException.throwIt(ISO7816.SW_NO_ERROR);
         }
-
-        if (io.isLoaded()) {
-            buf = io.retrieveBuffer(buf, offset, lc);
-            offset = 0;
-            lc = (short) buf.length;
+        if (chained) {
+            counters.increment(Counters.CHAINED);
         }
 
-        short cur = offset;
-        if (buf[cur++] != (byte) 0x7C) {
+        /* The response is built in the workspace, after the value if there */
+        byte tag = decoder.getTag();
+        short k = decoder.getLength();
+        short m = decoder.getOffset();
+        buf = decoder.getBuffer(buf);
+        byte[] out = io.getBuffer();
+        short o = (buf == out) ? k : 0;
+
+        if (tag == (byte) 0x85) {
+            doKeyAgreement(apdu, id, key, buf, m, k, out, o);
+            return;
+        }
+        if (tag == (byte) 0x8A) {
+            doBatchSignature(apdu, id, key, buf, m, k, out, o);
+            return;
+        }
+        if (tag == 0) {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         }
 
-        cur += lengthLength(BERTLV.decodeLength(buf, cur));
-        short m = getTag(buf, cur, lc, (byte) 0x81);
-        if (m < lc && buf[m] == (byte) 0x81) {
-            short k = BERTLV.decodeLength(buf, (short) (m + 1));
-            m += lengthLength(k) + 1;
+        /* 7C L { 82 L [signature] }, put in front of it once signed */
+        short c = (short) (o + SIGNATURE_HEADER_MAX);
+        k = sign(key, tag, buf, m, k, out, c);
+        short start = BERTLV.prependHeader(out, c, (byte) 0x82, k);
+        start = BERTLV.prependHeader(out, start, (byte) 0x7C, (short) (c + k - start));
+        counters.increment((short) (Counters.OPERATIONS + id));
+        io.sendBuffer(out, start, (short) (c + k - start), apdu);
+    }
 
-            byte[] signature = null;
-            short l = 0;
-            if (keys[id].getType() == KeyBuilder.TYPE_RSA_CRT_PRIVATE) {
-                if (k != 256) {
-                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-                }
-                l = (short) 264; // (256 + LL(256) + 1) + LL(260) + 1
-                signature = new byte[l];
-                Util.arrayCopy(new byte[]{
-                    (byte) 0x7C, (byte) 0x82, (byte) 0x01, (byte) 0x04,
-                    (byte) 0x82, (byte) 0x82, (byte) 0x01, (byte) 0x00
-                }, (short) 0, signature, (short) 0, (short) 8);
-                rsa_cipher.init(keys[id], Cipher.MODE_DECRYPT);
-                try {
-                    k = rsa_cipher.doFinal(buf, m, k, signature, (short) 8);
-                } catch (CryptoException e) {
-                    if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
-                        ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
-                    }
-                    ISOException.throwIt(ISO7816.SW_UNKNOWN);
-                }
-                if (k != 256) {
-                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-                }
-            } else if (keys[id].getType() == KeyBuilder.TYPE_EC_FP_PRIVATE) {
-                if (ec_signature == null) {
+    /*
+     * Signs the k bytes at offset m of buf, writes the signature at offset
+     * c of out and returns its length. Tag 81 carries the block to sign as
+     * is, or the hash for EC keys. The vendor tag 89 only carries the hash,
+     * or its DigestInfo, and the card pads it.
+     */
+    private short sign(Key key, byte tag, byte[] buf, short m, short k,
+            byte[] out, short c) {
+        if (key.getType() == KeyBuilder.TYPE_RSA_CRT_PRIVATE) {
+            short n = (short) (key.getSize() / 8);
+            if (tag == (byte) 0x89) {
+                /* The block is padded in place of the result */
+                padPKCS1(buf, m, k, out, c, n);
+                buf = out;
+                m = c;
+                k = n;
+            }
+            if (k != n) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            try {
+                k = engines.getRSA(key).doFinal(buf, m, k, out, c);
+            } catch (CryptoException e) {
+                if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
                     ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
                 }
-                signature = new byte[76];
-                ec_signature.init(keys[id], Signature.MODE_SIGN);
-                try {
-                    k = ec_signature.sign(buf, m, k, signature, (short) 4);
-                } catch (CryptoException e) {
-                    if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
-                        ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
-                    }
-                    ISOException.throwIt(ISO7816.SW_UNKNOWN);
-                }
-                if (k < 70) {
-                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                ISOException.throwIt(ISO7816.SW_UNKNOWN);
+            }
+            if ((k <= 0) || (k > n)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            /* Some implementations drop leading zero bytes */
+            if (k < n) {
+                Util.arrayCopyNonAtomic(out, c, out, (short) (c + n - k), k);
+                Util.arrayFillNonAtomic(out, c, (short) (n - k), (byte) 0x00);
+            }
+            return n;
+        } else if (key.getType() == KeyBuilder.TYPE_EC_FP_PRIVATE) {
+            /*
+             * A hash longer than the curve order is truncated to its
+             * leftmost bytes, as ECDSA would do.
+             */
+            short f = (short) ((short) (key.getSize() + 7) / 8);
+            if (k > f) {
+                k = f;
+            }
+            Signature signature = engines.getECDSA(key, k);
+            if (signature == null) {
+                ISOException.throwIt(engines.hasECDSA()
+                        ? ISO7816.SW_WRONG_LENGTH : ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
+            try {
+                k = signature.signPreComputedHash(buf, m, k, out, c);
+            } catch (CryptoException e) {
+                if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
+                    ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
                 }
-                signature[0] = (byte) 0x7C;
-                signature[1] = (byte) ((k + 2) & 0xFF);
-                signature[2] = (byte) 0x82;
-                signature[3] = (byte) (k & 0xFF);
-                l = (short) (k + 4);
+                ISOException.throwIt(ISO7816.SW_UNKNOWN);
+            }
+            if (k <= 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
             }
-            io.sendBuffer(signature, l, apdu);
+            return k;
+        }
+        return 0;
+    }
+
+    /*
+     * Vendor batch signature, tag 8A holds a list of data objects with tag
+     * 81 or 89, each signed as in a single request. The signatures are
+     * returned in the same order from the scratch area, over GET RESPONSE.
+     * Every batch rewrites that persistent area, so a workload made only of
+     * batches wears the EEPROM under it: single requests stay in RAM.
+     * T:0x7C L:(variable)
+     * - T:0x82 L:(variable) V:[signature], for each entry of the list
+     */
+    private void doBatchSignature(APDU apdu, short id, Key key, byte[] buf, short m,
+            short k, byte[] out, short o) {
+        short end = (short) (m + k);
+        /* Each signature is built after the list, behind room for its header */
+        short c = (short) (o + 4);
+        short max = (short) ((short) (key.getSize() + 7) / 8);
+        if (key.getType() == KeyBuilder.TYPE_EC_FP_PRIVATE) {
+            /* DER sequence of two integers, with a sign byte each */
+            max = (short) (2 * max + 8);
+        }
+        if ((short) (c + max) > (short) out.length) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+
+        io.openScratch(IOBuffer.SCRATCH_HEADER);
+        while (m < end) {
+            byte tag = buf[m++];
+            short v = (m < end) ? BERTLV.skipLength(buf, m) : end;
+            if (((tag != (byte) 0x81) && (tag != (byte) 0x89)) || (v >= end)) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            k = BERTLV.decodeLength(buf, m);
+            if ((k <= 0) || (k > (short) (end - v))) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            short l = sign(key, tag, buf, v, k, out, c);
+            short start = BERTLV.prependHeader(out, c, (byte) 0x82, l);
+            io.appendScratch(out, start, (short) (c + l - start));
+            counters.increment((short) (Counters.OPERATIONS + id));
+            m = (short) (v + k);
+        }
+        io.sendScratch((byte) 0x7C, apdu);
+    }
+
+    /*
+     * ECDH with the key management key or a retired one, tag 85 holds the
+     * uncompressed public point of the other party. The response is the x
+     * coordinate of the shared point, short enough to never need chaining.
+     * T:0x7C L:(Z + 2)
+     * - T:0x82 L:(Z) V:[shared secret Z, 32 bytes for P-256, 48 for P-384]
+     */
+    private void doKeyAgreement(APDU apdu, short id, Key key, byte[] buf, short m,
+            short k, byte[] out, short o) {
+        if (key.getType() != KeyBuilder.TYPE_EC_FP_PRIVATE) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        if ((id != keyMapping((byte) 0x9D)) && (id < RETIRED_FIRST)) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (!engines.hasECDH()) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+
+        short f = (short) ((short) (key.getSize() + 7) / 8);
+        if ((k != (short) (2 * f + 1)) || (buf[m] != (byte) 0x04)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        try {
+            k = engines.getECDH(key).generateSecret(buf, m, k, out, (short) (o + 4));
+        } catch (CryptoException e) {
+            if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
+        short c = BERTLV.prependHeader(out, (short) (o + 4), (byte) 0x82, k);
+        c = BERTLV.prependHeader(out, c, (byte) 0x7C, (short) (k + 2));
+        counters.increment((short) (Counters.OPERATIONS + id));
+        io.sendBuffer(out, c, (short) (o + 4 + k - c), apdu);
     }
 }
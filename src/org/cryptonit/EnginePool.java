@@ -0,0 +1,193 @@
+package org.cryptonit;
+
+import javacard.framework.JCSystem;
+import javacard.security.Key;
+import javacard.security.KeyAgreement;
+import javacard.security.PrivateKey;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+/**
+ * Cryptographic engines shared by all commands. Each engine is created
+ * once and remembers the key it was last initialized with, so that
+ * consecutive operations with the same key skip the init step.
+ *
+ * A Cipher.OneShot or Signature.OneShot has to be opened, initialized and
+ * closed for every operation, which would give that saving up: the RSA and
+ * ECDSA engines signing with the same slot over and over stay pooled. The
+ * management key, used twice per authentication, goes through
+ * Cipher.OneShot when the platform offers it, and then needs no persistent
+ * engine at all.
+ */
+
+public class EnginePool {
+    private Cipher des_cipher = null;
+    private Cipher rsa_cipher = null;
+    /* ECDSA over a precomputed hash, one engine per digest length */
+    private Signature ec_sha1 = null;
+    private Signature ec_sha256 = null;
+    private Signature ec_sha384 = null;
+    private KeyAgreement ec_dh = null;
+
+    private Object[] keys = null;
+    final private byte DES = 0x0;
+    final private byte RSA = 0x1;
+    final private byte EC_SHA1   = 0x2;
+    final private byte EC_SHA256 = 0x3;
+    final private byte EC_SHA384 = 0x4;
+    final private byte ECDH      = 0x5;
+
+    /**
+     * Only creates the engines of the algorithms enabled, the DES engine
+     * of the management key is always there.
+     */
+    public EnginePool(boolean rsa, boolean ec) {
+        if (!hasOneShot(Cipher.CIPHER_DES_ECB, Cipher.PAD_NOPAD)) {
+            des_cipher = Cipher.getInstance(Cipher.ALG_DES_ECB_NOPAD, false);
+        }
+        if (rsa) {
+            rsa_cipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+        }
+        if (ec) {
+            ec_sha1 = getSignature(Signature.ALG_ECDSA_SHA);
+            ec_sha256 = getSignature(Signature.ALG_ECDSA_SHA_256);
+            ec_sha384 = getSignature(Signature.ALG_ECDSA_SHA_384);
+            try {
+                ec_dh = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
+            } catch (Exception e) {
+            }
+        }
+        /* Engine state does not survive deselection on every platform */
+        keys = JCSystem.makeTransientObjectArray((short) 6,
+                JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    private static boolean hasOneShot(byte cipher, byte padding) {
+        try {
+            Cipher.OneShot c = Cipher.OneShot.open(cipher, padding);
+            if (c != null) {
+                c.close();
+                return true;
+            }
+        } catch (Exception e) {
+        }
+        return false;
+    }
+
+    private static Signature getSignature(byte algorithm) {
+        try {
+            return Signature.getInstance(algorithm, false);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public boolean hasECDSA() {
+        return (ec_sha1 != null) || (ec_sha256 != null) || (ec_sha384 != null);
+    }
+
+    public boolean hasECDH() {
+        return ec_dh != null;
+    }
+
+    /**
+     * Returns true if an ECDSA signature can be computed over a hash of
+     * this length (20, 32 or 48 bytes).
+     */
+    public boolean hasECDSA(short length) {
+        switch (length) {
+            case 20:
+                return ec_sha1 != null;
+            case 32:
+                return ec_sha256 != null;
+            case 48:
+                return ec_sha384 != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Forgets the init state of every engine using this key. Must be
+     * called whenever the value of a key is changed in place.
+     */
+    public void invalidate(Key key) {
+        for (short i = 0; i < (short) keys.length; i++) {
+            if (keys[i] == key) {
+                keys[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Encrypts one 8-byte block with a DES key and returns the length
+     * written.
+     */
+    public short encryptDES(Key key, byte[] in, short offset, byte[] out, short o) {
+        if (des_cipher == null) {
+            Cipher.OneShot c = Cipher.OneShot.open(Cipher.CIPHER_DES_ECB, Cipher.PAD_NOPAD);
+            try {
+                c.init(key, Cipher.MODE_ENCRYPT);
+                return c.doFinal(in, offset, (short) 8, out, o);
+            } finally {
+                c.close();
+            }
+        }
+        if (keys[DES] != key) {
+            des_cipher.init(key, Cipher.MODE_ENCRYPT);
+            keys[DES] = key;
+        }
+        return des_cipher.doFinal(in, offset, (short) 8, out, o);
+    }
+
+    public Cipher getRSA(Key key) {
+        if (keys[RSA] != key) {
+            rsa_cipher.init(key, Cipher.MODE_DECRYPT);
+            keys[RSA] = key;
+        }
+        return rsa_cipher;
+    }
+
+    /**
+     * Returns the ECDSA engine to use with signPreComputedHash() on a hash
+     * of this length, or null if there is none.
+     */
+    public Signature getECDSA(Key key, short length) {
+        byte i;
+        Signature s;
+
+        switch (length) {
+            case 20:
+                i = EC_SHA1;
+                s = ec_sha1;
+                break;
+            case 32:
+                i = EC_SHA256;
+                s = ec_sha256;
+                break;
+            case 48:
+                i = EC_SHA384;
+                s = ec_sha384;
+                break;
+            default:
+                return null;
+        }
+        if ((s != null) && (keys[i] != key)) {
+            s.init(key, Signature.MODE_SIGN);
+            keys[i] = key;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the key agreement engine, which computes the x coordinate of
+     * the shared point.
+     */
+    public KeyAgreement getECDH(Key key) {
+        if (keys[ECDH] != key) {
+            ec_dh.init((PrivateKey) key);
+            keys[ECDH] = key;
+        }
+        return ec_dh;
+    }
+}
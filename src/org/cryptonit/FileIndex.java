@@ -1,5 +1,10 @@
 package org.cryptonit;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
 /**
  * @author Mathias Brossard
  */
@@ -7,25 +12,111 @@ package org.cryptonit;
 public class FileIndex {
 
     /**
+     * Objects are indexed by the last byte of their '5FC1xx' tag minus one,
+     * so that a tag is resolved to its entry in constant time. The Discovery
+     * Object and the BIT Group Template, which have other tags, come after,
+     * followed by the vendor objects ('5FFFxx').
+     *
      * X.509 Certificate for Card Authentication       (Key Reference '9E')  0x0500 '5FC101' 1905
      * Card Holder Unique Identifier                                         0x3000 '5FC102' 2916
-     * Discovery Object                                                      0x6050 '7E'     19
+     * Cardholder Fingerprints                                       (PIN)   0x6010 '5FC103' 4006
      * X.509 Certificate for PIV Authentication        (Key Reference '9A')  0x0101 '5FC105' 1905
+     * Security Object                                                       0x9000 '5FC106' 1008
      * Card Capability Container                                             0xDB00 '5FC107' 287
-     * Printed Information (PIN)                                             0x3001 '5FC109' 245
+     * Cardholder Facial Image                                       (PIN)   0x6030 '5FC108' 12710
+     * Printed Information                                           (PIN)   0x3001 '5FC109' 245
      * X.509 Certificate for Digital Signature         (Key Reference '9C')  0x0100 '5FC10A' 1905
      * X.509 Certificate for Key Management            (Key Reference '9D')  0x0102 '5FC10B' 1905
+     * Key History Object                                                    0x0600 '5FC10C' 128
+     * Retired X.509 Certificates for Key Management 1 to 20 ('82' - '95')
+     *                                                   0x1001 - 0x1014 '5FC10D' - '5FC120' 1905
+     * Cardholder Iris Images                                        (PIN)   0x1015 '5FC121' 7106
+     * Secure Messaging Certificate Signer                                   0x1017 '5FC122' 2471
+     * Pairing Code Reference Data Container                         (PIN)   0x1018 '5FC123' 12
+     * Discovery Object                                                      0x6050 '7E'     19
+     * Biometric Information Templates Group Template                        0x1016 '7F61'   200
+     * Supported Algorithms (vendor, read only)                              0xFF01 '5FFF01' 32
+     * Performance Counters (vendor, computed on read)                       0xFF02 '5FFF02' 202
+     *
+     * Sizes are the maximum for uncompressed objects. Certificates flagged
+     * as gzip compressed by their CertInfo byte ('71' = 0x01) are stored and
+     * returned as uploaded, their size is the one of the compressed object.
      */
-    public final static byte X509_CARD_AUTH      = 0x0;
-    public final static byte CHUID               = 0x1;
-    public final static byte DISCOVERY           = 0x3;
-    public final static byte X509_AUTH           = 0x4;
-    public final static byte CARD_CAPABILITY     = 0x6;
-    public final static byte PRINTED_INFO        = 0x8;
-    public final static byte X509_SIGNATURE      = 0x9;
-    public final static byte X509_ENCRYPTION     = 0xA;
+    public final static byte X509_CARD_AUTH      = 0x00;
+    public final static byte CHUID               = 0x01;
+    public final static byte FINGERPRINTS        = 0x02;
+    public final static byte X509_AUTH           = 0x04;
+    public final static byte SECURITY_OBJECT     = 0x05;
+    public final static byte CARD_CAPABILITY     = 0x06;
+    public final static byte FACIAL_IMAGE        = 0x07;
+    public final static byte PRINTED_INFO        = 0x08;
+    public final static byte X509_SIGNATURE      = 0x09;
+    public final static byte X509_ENCRYPTION     = 0x0A;
+    public final static byte KEY_HISTORY         = 0x0B;
+    public final static byte X509_RETIRED_FIRST  = 0x0C;
+    public final static byte X509_RETIRED_LAST   = 0x1F;
+    public final static byte IRIS_IMAGES         = 0x20;
+    public final static byte SM_CERT_SIGNER      = 0x21;
+    public final static byte PAIRING_CODE        = 0x22;
+    public final static byte DISCOVERY           = 0x23;
+    public final static byte BIT_GROUP_TEMPLATE  = 0x24;
+    public final static byte ALGORITHMS          = 0x25;
+    public final static byte COUNTERS            = 0x26;
+    public final static byte ENTRIES             = 0x27;
+
+    /* Read access rules */
+    public final static byte ACCESS_ALWAYS       = 0x0;
+    public final static byte ACCESS_PIN          = 0x1;
+
+    /* Container ID of each entry, 0 when there is no such object */
+    private final static short[] CONTAINERS = {
+        (short) 0x0500, (short) 0x3000, (short) 0x6010, (short) 0x0000,
+        (short) 0x0101, (short) 0x9000, (short) 0xDB00, (short) 0x6030,
+        (short) 0x3001, (short) 0x0100, (short) 0x0102, (short) 0x0600,
+        (short) 0x1001, (short) 0x1002, (short) 0x1003, (short) 0x1004,
+        (short) 0x1005, (short) 0x1006, (short) 0x1007, (short) 0x1008,
+        (short) 0x1009, (short) 0x100A, (short) 0x100B, (short) 0x100C,
+        (short) 0x100D, (short) 0x100E, (short) 0x100F, (short) 0x1010,
+        (short) 0x1011, (short) 0x1012, (short) 0x1013, (short) 0x1014,
+        (short) 0x1015, (short) 0x1017, (short) 0x1018, (short) 0x6050,
+        (short) 0x1016, (short) 0xFF01, (short) 0xFF02
+    };
+
+    /* Read access rule of each entry */
+    private final static byte[] ACCESS = {
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_PIN,    ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_PIN,
+        ACCESS_PIN,    ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS,
+        ACCESS_PIN,    ACCESS_ALWAYS, ACCESS_PIN,    ACCESS_ALWAYS,
+        ACCESS_ALWAYS, ACCESS_ALWAYS, ACCESS_ALWAYS
+    };
+
     public IndexEntry [] entries;
 
+    /*
+     * All objects live in a single persistent store allocated once. A new
+     * version of an object is written to a pending block taken from the
+     * free list or from the top of the store, and replaces the current one
+     * atomically once complete. When neither has room, the store is
+     * compacted.
+     */
+    public byte [] store;
+    private short top;
+    /* Largest object, set at install time */
+    private short largest;
+    private short [] free_offset;
+    private short [] free_size;
+    private final static byte FREE_SLOTS = 8;
+
+    /* Block being written, not yet attached to an entry */
+    private short pending_offset;
+    private short pending_size;
+
     public final static byte[] DISCOVERY_VALUE = {
         /* (0x7E) Discovery Object: interindustry ISO7816 template */
         (byte) 0x7E, (byte) 0x12,
@@ -121,15 +212,239 @@ public class FileIndex {
         (byte) 0xFE, (byte) 0x00
     };
 
-    public FileIndex() {
-        entries = new IndexEntry[11];
-        entries[X509_CARD_AUTH ] = new IndexEntry(X509_CARD_AUTH , (short) 0x0500, null);
-        entries[CHUID          ] = new IndexEntry(CHUID          , (short) 0x3000, CHUID_VALUE);
-        entries[DISCOVERY      ] = new IndexEntry(DISCOVERY      , (short) 0x6050, DISCOVERY_VALUE);
-        entries[X509_AUTH      ] = new IndexEntry(X509_AUTH      , (short) 0x0101, null);
-        entries[CARD_CAPABILITY] = new IndexEntry(CARD_CAPABILITY, (short) 0xDB00, CAPABILITY_VALUE);
-        entries[PRINTED_INFO   ] = new IndexEntry(PRINTED_INFO   , (short) 0x3001, null);
-        entries[X509_SIGNATURE ] = new IndexEntry(X509_SIGNATURE , (short) 0x0100, null);
-        entries[X509_ENCRYPTION] = new IndexEntry(X509_ENCRYPTION, (short) 0x0102, null);
+    public FileIndex(short size, short largest) {
+        store = new byte[size];
+        this.largest = largest;
+        free_offset = new short[FREE_SLOTS];
+        free_size = new short[FREE_SLOTS];
+
+        entries = new IndexEntry[ENTRIES];
+        for (byte i = 0; i < ENTRIES; i++) {
+            if (CONTAINERS[i] != 0) {
+                entries[i] = new IndexEntry(i, CONTAINERS[i], ACCESS[i]);
+            }
+        }
+
+        setDefault(CHUID, CHUID_VALUE);
+        setDefault(DISCOVERY, DISCOVERY_VALUE);
+        setDefault(CARD_CAPABILITY, CAPABILITY_VALUE);
+    }
+
+    private void setDefault(byte id, byte[] value) {
+        setDefault(id, value, (short) 0, (short) value.length);
+    }
+
+    /**
+     * Sets the initial value of an object, used at install time for the
+     * objects built by the applet.
+     */
+    public void setDefault(byte id, byte[] value, short offset, short length) {
+        allocate(id, length);
+        Util.arrayCopy(value, offset, store, entries[id].offset, length);
+    }
+
+    /**
+     * Reserves length bytes of the store for an object, replacing any
+     * previous content.
+     */
+    private void allocate(short id, short length) {
+        reserve(id, length);
+        commit(id, length);
+    }
+
+    /**
+     * Reserves a pending block of length bytes for a new version of an
+     * object and returns its offset. The current version stays readable
+     * until commit() is called: when the store cannot hold both, even once
+     * compacted, the upload is refused. Objects larger than the limit set
+     * at install time are refused.
+     */
+    public short reserve(short id, short length) {
+        if (length > largest) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+
+        JCSystem.beginTransaction();
+        releaseBlock(pending_offset, pending_size);
+        pending_size = 0;
+        short off = take(length);
+        if ((off < 0) && ((short) (top + length) <= (short) store.length)) {
+            off = top;
+            top += length;
+        }
+        if (off >= 0) {
+            pending_offset = off;
+            pending_size = length;
+        }
+        JCSystem.commitTransaction();
+
+        if (off < 0) {
+            compact();
+            if ((short) (top + length) > (short) store.length) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+            JCSystem.beginTransaction();
+            pending_offset = top;
+            pending_size = length;
+            top += length;
+            JCSystem.commitTransaction();
+        }
+        return pending_offset;
+    }
+
+    /**
+     * Atomically replaces an object with the content of the pending block
+     * and releases the block of its previous version.
+     */
+    public void commit(short id, short length) {
+        IndexEntry e = entries[id];
+
+        JCSystem.beginTransaction();
+        releaseBlock(e.offset, e.capacity);
+        e.offset = pending_offset;
+        e.capacity = pending_size;
+        e.length = length;
+        pending_size = 0;
+        JCSystem.commitTransaction();
+    }
+
+    /*
+     * Returns a block to the free list. When the free list is full the
+     * block is only recovered by the next compaction.
+     */
+    private void releaseBlock(short offset, short size) {
+        short end = (short) (offset + size);
+
+        if (size == 0) {
+            return;
+        }
+        if (end == top) {
+            top = offset;
+            /* Blocks now at the top of the store are merged back into it */
+            for (short i = 0; i < FREE_SLOTS; i++) {
+                if ((free_size[i] != 0)
+                        && ((short) (free_offset[i] + free_size[i]) == top)) {
+                    top = free_offset[i];
+                    free_size[i] = 0;
+                    i = -1;
+                }
+            }
+        } else {
+            for (short i = 0; i < FREE_SLOTS; i++) {
+                if (free_size[i] == 0) {
+                    free_offset[i] = offset;
+                    free_size[i] = size;
+                    break;
+                }
+            }
+        }
+    }
+
+    /* First fit allocation from the free list, -1 if nothing fits */
+    private short take(short length) {
+        for (short i = 0; i < FREE_SLOTS; i++) {
+            if (free_size[i] >= length) {
+                short off = free_offset[i];
+                free_offset[i] += length;
+                free_size[i] -= length;
+                return off;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves all objects to the bottom of the store, in the order of their
+     * offsets, and shrinks their blocks to their length. Objects are copied
+     * without transaction to free space, then re-addressed atomically, so
+     * that an interruption leaves each one either at its old or its new
+     * offset. An object that would overlap its own destination is first
+     * moved to the top of the store, or left in place if there is no room
+     * there. There must be no pending block.
+     */
+    public void compact() {
+        short dst = 0;
+        IndexEntry e;
+
+        /* Free blocks may be overwritten from now on */
+        JCSystem.beginTransaction();
+        for (short i = 0; i < FREE_SLOTS; i++) {
+            free_size[i] = 0;
+        }
+        JCSystem.commitTransaction();
+
+        while (true) {
+            e = null;
+            for (short i = 0; i < ENTRIES; i++) {
+                IndexEntry c = entries[i];
+                if ((c != null) && (c.capacity != 0) && (c.offset >= dst)
+                        && ((e == null) || (c.offset < e.offset))) {
+                    e = c;
+                }
+            }
+            if (e == null) {
+                break;
+            }
+            if ((e.offset != dst) && ((short) (dst + e.length) > e.offset)) {
+                if ((short) (store.length - top) >= e.length) {
+                    move(e, top, (short) (top + e.length));
+                    continue;
+                }
+                dst = e.offset;
+            }
+            move(e, dst, top);
+            dst += e.length;
+        }
+
+        JCSystem.beginTransaction();
+        top = dst;
+        JCSystem.commitTransaction();
+    }
+
+    /*
+     * Copies an object to free space, then points its entry there and sets
+     * the top of the store in a single transaction.
+     */
+    private void move(IndexEntry e, short offset, short top) {
+        if (e.offset != offset) {
+            Util.arrayCopyNonAtomic(store, e.offset, store, offset, e.length);
+        }
+        JCSystem.beginTransaction();
+        e.offset = offset;
+        e.capacity = e.length;
+        this.top = top;
+        JCSystem.commitTransaction();
+    }
+
+    /**
+     * Resolves the BER tag of a data object to its entry.
+     *
+     * @return the index of the entry or -1 if there is no such object
+     */
+    public short getIndex(byte[] buf, short offset, short length) {
+        if ((length == 1) && (buf[offset] == (byte) 0x7E)) {
+            return DISCOVERY;
+        }
+        if ((length == 2) && (buf[offset] == (byte) 0x7F)
+                && (buf[(short) (offset + 1)] == (byte) 0x61)) {
+            return BIT_GROUP_TEMPLATE;
+        }
+        if ((length == 3) && (buf[offset] == (byte) 0x5F)
+                && (buf[(short) (offset + 1)] == (byte) 0xC1)) {
+            short id = (short) (buf[(short) (offset + 2)] - 1);
+            if ((id >= 0) && (id < DISCOVERY) && (entries[id] != null)) {
+                return id;
+            }
+        }
+        if ((length == 3) && (buf[offset] == (byte) 0x5F)
+                && (buf[(short) (offset + 1)] == (byte) 0xFF)) {
+            if (buf[(short) (offset + 2)] == (byte) 0x01) {
+                return ALGORITHMS;
+            }
+            if (buf[(short) (offset + 2)] == (byte) 0x02) {
+                return COUNTERS;
+            }
+        }
+        return -1;
     }
 }
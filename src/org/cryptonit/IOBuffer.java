@@ -12,42 +12,107 @@ import javacard.framework.Util;
 
 public class IOBuffer {
     private FileIndex index = null;
+    private Counters counters = null;
     private byte[] buffer = null;
+    /* Persistent area for responses larger than the workspace */
+    private byte[] scratch = null;
 
     private short[] shorts = null;
     final private byte SIZE   = 0x0;
     final private byte PATH   = 0x1;
     final private byte OFFSET = 0x2;
+    final private byte STAGED = 0x3;
+    /* End of the response in the scratch area */
+    final private byte FILL   = 0x4;
 
     private boolean[] bools = null;
     final private byte isLOADED = 0x0;
     final private byte isFILE   = 0x1;
+    final private byte isINCOMING = 0x2;
+
+    final static short MAX_EXTENDED_LE = (short) 0x7FFF;
+
+    /* Path of the scratch area, paged like an object */
+    final private static short SCRATCH = (short) -1;
+    /* Room left for a tag and a length up to 0x7FFF before a response */
+    final static short SCRATCH_HEADER = (short) 4;
 
     public void clear() {
         this.bools[isLOADED] = false;
     }
 
-    public boolean isLoaded() {
-        return this.bools[isLOADED];
+    /**
+     * Returns true while an object upload started by createFile() has not
+     * been committed.
+     */
+    public boolean isReceivingFile() {
+        return this.bools[isLOADED] && this.bools[isFILE]
+                && this.bools[isINCOMING];
     }
 
-    public IOBuffer(FileIndex index) {
+    /**
+     * Transient workspace used both to keep the value of chained requests
+     * and to build responses, so that no persistent memory is allocated
+     * while processing commands. Responses that do not fit in it go to a
+     * persistent scratch area, written without transactions and sent over
+     * GET RESPONSE like an object. Both sizes are fixed at install time.
+     */
+    public IOBuffer(FileIndex index, Counters counters, short size, short spill) {
         this.index = index;
-        this.bools = JCSystem.makeTransientBooleanArray((short) 2,
+        this.counters = counters;
+        this.scratch = new byte[spill];
+        this.bools = JCSystem.makeTransientBooleanArray((short) 3,
                 JCSystem.CLEAR_ON_DESELECT);
-        this.buffer = JCSystem.makeTransientByteArray((short) 256,
+        this.buffer = JCSystem.makeTransientByteArray(size,
                 JCSystem.CLEAR_ON_DESELECT);
-        this.shorts = JCSystem.makeTransientShortArray((short) 3,
+        this.shorts = JCSystem.makeTransientShortArray((short) 5,
                 JCSystem.CLEAR_ON_DESELECT);
     }
 
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
     public void sendBuffer(byte[] buf, short length, APDU apdu) {
+        sendBuffer(buf, (short) 0, length, apdu);
+    }
+
+    /**
+     * Switches to outgoing mode and returns how many bytes can be sent in
+     * this response. When Le is absent or encodes the maximum length, the
+     * whole response is sent at once if the command was an extended length
+     * APDU, otherwise it is split in short responses using GET RESPONSE.
+     * Commands without data (GET RESPONSE) are only considered extended
+     * when Le itself was encoded as the extended maximum.
+     */
+    private short setOutgoing(APDU apdu) {
+        boolean extended = false;
+        byte state = apdu.getCurrentState();
+        if ((state == APDU.STATE_PARTIAL_INCOMING)
+                || (state == APDU.STATE_FULL_INCOMING)) {
+            extended = (apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA);
+        }
         short le = apdu.setOutgoing();
-        short r = 0;
 
-        if (le == 0) {
-            le = (short) (APDU.getOutBlockSize() - 2);
+        if ((le == 0) || (le == MAX_EXTENDED_LE)) {
+            if (extended || (le == MAX_EXTENDED_LE)) {
+                le = MAX_EXTENDED_LE;
+            } else {
+                le = (short) (APDU.getOutBlockSize() - 2);
+            }
         }
+        return le;
+    }
+
+    /**
+     * Sends a response built in place, in the APDU buffer or in the
+     * workspace. What does not fit in this response is left where it is
+     * in the workspace for GET RESPONSE, only a remainder in another
+     * buffer is copied, to the workspace or to the scratch area.
+     */
+    public void sendBuffer(byte[] buf, short offset, short length, APDU apdu) {
+        short le = setOutgoing(apdu);
+        short r = 0;
 
         if (le > length) {
             le = length;
@@ -55,60 +120,149 @@ public class IOBuffer {
 
         if (le < length) {
             r = (short) (length - le);
-            if (r > (short) this.buffer.length) {
-                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            short o = (short) (offset + le);
+            boolean spill = false;
+            if (buf != this.buffer) {
+                /* Saved before sending, which may use the APDU buffer */
+                if (r > (short) this.buffer.length) {
+                    /* Too large for the workspace, paged from the scratch area */
+                    openScratch((short) 0);
+                    appendScratch(buf, o, r);
+                    this.shorts[PATH] = SCRATCH;
+                    spill = true;
+                } else {
+                    Util.arrayCopyNonAtomic(buf, o, this.buffer, (short) 0, r);
+                }
+                o = 0;
             }
             this.bools[isLOADED] = true;
-            this.bools[isFILE]   = false;
+            this.bools[isFILE]   = spill;
+            this.bools[isINCOMING] = false;
             this.shorts[SIZE]    = r;
+            this.shorts[OFFSET]  = o;
         }
 
         apdu.setOutgoingLength(le);
-        apdu.sendBytesLong(buf, (short) 0, le);
+        send(buf, offset, le, apdu);
 
         if (r > 0) {
-            if (r >= (short) (APDU.getOutBlockSize() - 2)) {
-                r = 0;
-            }
-            Util.arrayCopy(buf, le, this.buffer, (short) 0, r);
-            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | r));
+            remaining(r);
         } else {
             clear();
         }
     }
 
+    private void send(byte[] buf, short offset, short length, APDU apdu) {
+        if (buf == apdu.getBuffer()) {
+            apdu.sendBytes(offset, length);
+        } else {
+            apdu.sendBytesLong(buf, offset, length);
+        }
+        counters.add(Counters.BYTES_OUT, length);
+    }
+
+    /* Tells how many bytes GET RESPONSE will return, 00 for a full block */
+    private void remaining(short r) {
+        if (r >= (short) (APDU.getOutBlockSize() - 2)) {
+            r = 0;
+        }
+        ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | r));
+    }
+
+    /**
+     * Starts a response in the scratch area, leaving header bytes free in
+     * front of it. Any pending response is discarded.
+     */
+    public void openScratch(short header) {
+        clear();
+        this.shorts[FILL] = header;
+    }
+
+    /** Appends to the response in the scratch area, without transaction. */
+    public void appendScratch(byte[] buf, short offset, short length) {
+        short fill = this.shorts[FILL];
+        if ((length < 0) || ((short) (fill + length) < 0)
+                || ((short) (fill + length) > (short) this.scratch.length)) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        Util.arrayCopyNonAtomic(buf, offset, this.scratch, fill, length);
+        this.shorts[FILL] += length;
+    }
+
+    /** Length of the response in the scratch area, header excluded. */
+    public short getScratchLength(short header) {
+        return (short) (this.shorts[FILL] - header);
+    }
+
+    /**
+     * Sends the response of the scratch area under a single tag, whose
+     * header is written in the SCRATCH_HEADER bytes left free in front of
+     * it. The rest is served by GET RESPONSE.
+     */
+    public void sendScratch(byte tag, APDU apdu) {
+        short l = getScratchLength(SCRATCH_HEADER);
+        short start = BERTLV.prependHeader(this.scratch, SCRATCH_HEADER, tag, l);
+        sendPaged(SCRATCH, start, true, apdu);
+    }
+
     public void sendFile(short id, APDU apdu, short offset) {
-        byte[] d = index.entries[id].content;
-        if (d == null) {
+        sendFile(id, apdu, offset, true);
+    }
+
+    /**
+     * Sends an object starting at offset. When chain is false, at most Le
+     * bytes are sent and the rest of the object is not made available to
+     * GET RESPONSE.
+     */
+    public void sendFile(short id, APDU apdu, short offset, boolean chain) {
+        IndexEntry e = index.entries[id];
+        short length = e.length;
+        if (length == 0) {
             ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
         }
+        if (offset > length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
 
-        short le = apdu.setOutgoing();
-        short r = 0;
-        if (le == 0) {
-            le = (short) (APDU.getOutBlockSize() - 2);
+        sendPaged(id, offset, chain, apdu);
+    }
+
+    /*
+     * Sends an object, or the scratch area, from offset. Its location is
+     * looked up on each call since objects move when the store is compacted.
+     */
+    private void sendPaged(short id, short offset, boolean chain, APDU apdu) {
+        byte[] src = this.scratch;
+        short base = 0;
+        short length = this.shorts[FILL];
+        if (id != SCRATCH) {
+            IndexEntry e = index.entries[id];
+            src = index.store;
+            base = e.offset;
+            length = e.length;
         }
 
-        if ((short) (le + offset) > (short) d.length) {
-            le = (short) (d.length - offset);
+        short le = setOutgoing(apdu);
+        short r = 0;
+
+        if ((short) (le + offset) > length) {
+            le = (short) (length - offset);
         }
 
-        if ((short) (le + offset) < (short) d.length) {
-            r = (short) (d.length - (le + offset));
+        if (chain && ((short) (le + offset) < length)) {
+            r = (short) (length - (le + offset));
             this.bools[isLOADED] = true;
             this.bools[isFILE]   = true;
+            this.bools[isINCOMING] = false;
             this.shorts[OFFSET]  = (short) (le + offset);
             this.shorts[PATH]    = id;
         }
 
         apdu.setOutgoingLength(le);
-        apdu.sendBytesLong(d, offset, le);
+        send(src, (short) (base + offset), le, apdu);
 
         if (r > 0) {
-            if (r >= (short) (APDU.getOutBlockSize() - 2)) {
-                r = 0;
-            }
-            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | r));
+            remaining(r);
         } else {
             clear();
         }
@@ -118,69 +272,60 @@ public class IOBuffer {
         if (!this.bools[isLOADED]) {
             ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
+        counters.increment(Counters.GET_RESPONSE);
 
-        if (this.bools[isFILE]) {
+        if (this.bools[isFILE] && (this.shorts[PATH] == SCRATCH)) {
+            sendPaged(SCRATCH, this.shorts[OFFSET], true, apdu);
+        } else if (this.bools[isFILE]) {
             sendFile(this.shorts[PATH], apdu, this.shorts[OFFSET]);
         } else {
-            sendBuffer(this.buffer, this.shorts[SIZE], apdu);
+            sendBuffer(this.buffer, this.shorts[OFFSET], this.shorts[SIZE], apdu);
         }
     }
 
-    public void receiveBuffer(byte[] buf, short offset, short length) {
-        if (this.bools[isLOADED]) {
-            if (this.bools[isFILE]) {
-                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-            }
-            if ((short) (this.shorts[SIZE] + length) > this.buffer.length) {
-                ISOException.throwIt(ISO7816.SW_FILE_FULL);
-            }
-            Util.arrayCopy(buf, offset, this.buffer, this.shorts[SIZE], length);
-            this.shorts[SIZE] += length;
-        } else {
-            Util.arrayCopy(buf, offset, this.buffer, (short) 0, length);
-            this.shorts[SIZE] = length;
-            this.bools[isLOADED] = true;
-            this.bools[isFILE] = false;
-        }
-    }
-
-    public byte[] retrieveBuffer(byte[] buf, short offset, short length) {
-        if (!this.bools[isLOADED] || this.bools[isFILE]) {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-        }
-
-        short l = (short) (this.shorts[SIZE] + length);
-        byte[] r = new byte[l];
-
-        Util.arrayCopy(this.buffer, (short) 0, r, (short) 0, this.shorts[SIZE]);
-        Util.arrayCopy(buf, offset, r, this.shorts[SIZE], length);
-
-        this.bools[isLOADED] = false;
-        return r;
-    }
-
+    /**
+     * Starts the upload of a new version of an object. The content is
+     * written to a block reserved in the store and only replaces the
+     * current version when commitFile() is called, so an interrupted
+     * upload leaves the previous object untouched. Any pending response
+     * is discarded.
+     */
     public void createFile(short id, short length) {
-        if (this.bools[isLOADED]) {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-        }
-        index.entries[id].content = new byte[length];
+        clear();
+        this.shorts[STAGED] = index.reserve(id, length);
         this.bools[isLOADED] = true;
         this.bools[isFILE] = true;
+        this.bools[isINCOMING] = true;
         this.shorts[OFFSET] = 0;
         this.shorts[SIZE] = length;
         this.shorts[PATH] = id;
     }
 
     public void receiveFile(byte[] buf, short offset, short length) {
-        if (!this.bools[isLOADED] || !this.bools[isFILE]) {
+        if (!isReceivingFile()) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         if ((short) (this.shorts[OFFSET] + length) > this.shorts[SIZE]) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
-        short id = this.shorts[PATH];
-        Util.arrayCopy(buf, offset, index.entries[id].content,
-                this.shorts[OFFSET], length);
+        /* The reserved block is not referenced yet, no transaction needed */
+        Util.arrayCopyNonAtomic(buf, offset, index.store,
+                (short) (this.shorts[STAGED] + this.shorts[OFFSET]), length);
         this.shorts[OFFSET] += length;
     }
+
+    /**
+     * Completes an upload: the received object atomically replaces the
+     * previous version. Fails if fewer bytes than announced were received.
+     */
+    public void commitFile() {
+        if (!isReceivingFile()) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        clear();
+        if (this.shorts[OFFSET] != this.shorts[SIZE]) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        index.commit(this.shorts[PATH], this.shorts[SIZE]);
+    }
 }
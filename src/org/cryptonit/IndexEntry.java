@@ -7,11 +7,16 @@ package org.cryptonit;
 public class IndexEntry {
     public byte index;
     public short container;
-    public byte [] content;
+    public byte access;
 
-    public IndexEntry(byte index, short container, byte [] content) {
+    /* Location of the object in the FileIndex store, length 0 if absent */
+    public short offset;
+    public short length;
+    public short capacity;
+
+    public IndexEntry(byte index, short container, byte access) {
         this.index = index;
         this.container = container;
-        this.content = content;            
+        this.access = access;
     }
 }
@@ -0,0 +1,240 @@
+package org.cryptonit;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Incremental decoder of a constructed BER-TLV object, such as a dynamic
+ * authentication template, received over chained APDUs. Each chunk is
+ * decoded as it arrives, the object is never reassembled: the value of
+ * the first data object with one of the requested tags is kept and the
+ * other values are skipped. A later object with the same tag as the kept
+ * value is rejected.
+ *
+ * The kept value is left in place when it lies entirely in the last
+ * chunk, which is always the case for a request sent in a single APDU.
+ * Otherwise its bytes are copied to the start of the destination buffer
+ * as they arrive. Only single byte tags are supported.
+ */
+
+public class TLVDecoder {
+    private final byte[] dest;
+    private final byte template;
+    private final byte[] tags;
+
+    private short[] state = null;
+    final private byte STEP      = 0x0;
+    /* Length being decoded, then the remaining bytes of the current value */
+    final private byte LENGTH    = 0x1;
+    /* Length bytes still expected */
+    final private byte HEADER    = 0x2;
+    /* Remaining bytes of the content of the template */
+    final private byte REMAINING = 0x3;
+    final private byte TAG       = 0x4;
+    final private byte FOUND     = 0x5;
+    final private byte SIZE      = 0x6;
+    final private byte COPIED    = 0x7;
+    /* Offset of the kept value in the last chunk, -1 when copied */
+    final private byte OFFSET    = 0x8;
+    /* Non zero while the bytes of the kept value are being received */
+    final private byte KEEPING   = 0x9;
+
+    final private short IDLE           = 0x0;
+    final private short TEMPLATE_TAG   = 0x1;
+    final private short TEMPLATE_LENGTH = 0x2;
+    final private short INNER_TAG      = 0x3;
+    final private short INNER_LENGTH   = 0x4;
+    final private short VALUE          = 0x5;
+    final private short DONE           = 0x6;
+
+    /**
+     * Decodes objects with the given template tag, keeping the value of
+     * the first of the tags in the destination buffer.
+     */
+    public TLVDecoder(byte[] dest, byte template, byte[] tags) {
+        this.dest = dest;
+        this.template = template;
+        this.tags = tags;
+        this.state = JCSystem.makeTransientShortArray((short) 10,
+                JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /** Forgets any object being decoded. */
+    public void reset() {
+        state[STEP] = IDLE;
+    }
+
+    /* A failed object is forgotten, the next chunk starts a new one */
+    private void fail(short sw) {
+        state[STEP] = IDLE;
+        ISOException.throwIt(sw);
+    }
+
+    /** Returns true while a chained object is being decoded. */
+    public boolean isStarted() {
+        return (state[STEP] != IDLE) && (state[STEP] != DONE);
+    }
+
+    public void start() {
+        state[STEP] = TEMPLATE_TAG;
+        state[FOUND] = 0;
+        state[SIZE] = 0;
+        state[COPIED] = 0;
+        state[OFFSET] = -1;
+        state[KEEPING] = 0;
+    }
+
+    /** Returns true once the whole template was decoded. */
+    public boolean isComplete() {
+        return state[STEP] == DONE;
+    }
+
+    /** Tag of the kept value, 0 if none of the tags was found. */
+    public byte getTag() {
+        return (byte) state[FOUND];
+    }
+
+    public short getLength() {
+        return state[SIZE];
+    }
+
+    /** Buffer holding the kept value, the last chunk or the destination. */
+    public byte[] getBuffer(byte[] last) {
+        return (state[OFFSET] < 0) ? dest : last;
+    }
+
+    public short getOffset() {
+        return (state[OFFSET] < 0) ? 0 : state[OFFSET];
+    }
+
+    /* Decodes a length byte, returns true when the length is complete */
+    private boolean length(byte b, boolean first) {
+        if (first) {
+            state[HEADER] = 0;
+            if (b >= 0) {
+                state[LENGTH] = b;
+                return true;
+            }
+            if ((b != (byte) 0x81) && (b != (byte) 0x82)) {
+                fail(ISO7816.SW_DATA_INVALID);
+            }
+            state[LENGTH] = 0;
+            state[HEADER] = (short) (b & 0x03);
+            return false;
+        }
+        state[LENGTH] = (short) ((short) (state[LENGTH] << 8) | (b & 0xFF));
+        if (state[LENGTH] < 0) {
+            fail(ISO7816.SW_WRONG_LENGTH);
+        }
+        return (--state[HEADER] == 0);
+    }
+
+    /* Step after an inner object */
+    private short next() {
+        return (state[REMAINING] == 0) ? DONE : INNER_TAG;
+    }
+
+    /**
+     * Decodes a chunk of the object, last is true for the final chunk.
+     * Fails if the object is malformed, if it is not complete after the
+     * last chunk or if a kept value does not fit in the destination.
+     */
+    public void feed(byte[] buf, short offset, short length, boolean last) {
+        short end = (short) (offset + length);
+
+        while (offset < end) {
+            short step = state[STEP];
+
+            if (step == VALUE) {
+                short n = (short) (end - offset);
+                if (n > state[LENGTH]) {
+                    n = state[LENGTH];
+                }
+                if (state[KEEPING] != 0) {
+                    if (last && (state[COPIED] == 0) && (n == state[SIZE])) {
+                        state[OFFSET] = offset;
+                    } else {
+                        if ((short) (state[COPIED] + n) > (short) dest.length) {
+                            fail(ISO7816.SW_FILE_FULL);
+                        }
+                        Util.arrayCopyNonAtomic(buf, offset, dest, state[COPIED], n);
+                        state[COPIED] += n;
+                    }
+                }
+                offset += n;
+                state[REMAINING] -= n;
+                state[LENGTH] -= n;
+                if (state[LENGTH] == 0) {
+                    state[KEEPING] = 0;
+                    state[STEP] = next();
+                }
+                continue;
+            }
+
+            byte b = buf[offset++];
+            if (step >= INNER_TAG) {
+                if (state[REMAINING] == 0) {
+                    fail(ISO7816.SW_DATA_INVALID);
+                }
+                state[REMAINING]--;
+            }
+            switch (step) {
+                case TEMPLATE_TAG:
+                    if (b != template) {
+                        fail(ISO7816.SW_DATA_INVALID);
+                    }
+                    state[STEP] = TEMPLATE_LENGTH;
+                    state[HEADER] = 0;
+                    break;
+                case TEMPLATE_LENGTH:
+                    if (length(b, state[HEADER] == 0)) {
+                        state[REMAINING] = state[LENGTH];
+                        state[STEP] = next();
+                    }
+                    break;
+                case INNER_TAG:
+                    if ((b & 0x1F) == 0x1F) {
+                        fail(ISO7816.SW_DATA_INVALID);
+                    }
+                    state[TAG] = b;
+                    state[STEP] = INNER_LENGTH;
+                    state[HEADER] = 0;
+                    break;
+                case INNER_LENGTH:
+                    if (length(b, state[HEADER] == 0)) {
+                        if (state[LENGTH] > state[REMAINING]) {
+                            fail(ISO7816.SW_DATA_INVALID);
+                        }
+                        b = (byte) state[TAG];
+                        if ((state[FOUND] == 0) && isWanted(b)) {
+                            state[FOUND] = b;
+                            state[SIZE] = state[LENGTH];
+                            state[KEEPING] = (short) ((state[LENGTH] != 0) ? 1 : 0);
+                        } else if ((state[FOUND] != 0) && (b == (byte) state[FOUND])) {
+                            /* A repeated tag would make the kept value ambiguous */
+                            fail(ISO7816.SW_WRONG_DATA);
+                        }
+                        state[STEP] = (state[LENGTH] == 0) ? next() : VALUE;
+                    }
+                    break;
+                default:
+                    fail(ISO7816.SW_DATA_INVALID);
+                    break;
+            }
+        }
+        if (last && (state[STEP] != DONE)) {
+            fail(ISO7816.SW_DATA_INVALID);
+        }
+    }
+
+    private boolean isWanted(byte tag) {
+        for (short i = 0; i < (short) tags.length; i++) {
+            if (tags[i] == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
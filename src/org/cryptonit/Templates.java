@@ -0,0 +1,104 @@
+package org.cryptonit;
+
+/**
+ * Constant byte sequences used to build or check command data. They are
+ * allocated once, when the applet is loaded, and shared by all commands.
+ */
+
+public class Templates {
+
+    /* PIV AID, the applet can be selected with its first 5 or 9 bytes */
+    public final static byte[] PIV_AID = {
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08,
+        (byte) 0x00, (byte) 0x00, (byte) 0x10, (byte) 0x00, (byte) 0x01,
+        (byte) 0x00
+    };
+    public final static short PIV_AID_SHORT = 5;
+    public final static short PIV_AID_LONG  = 9;
+
+    /* Response to SELECT */
+    public final static byte[] FCI = {
+        /* Application property template */
+        (byte) 0x61, (byte) 0x16,
+        /* - Application identifier of application */
+        (byte) 0x4F, (byte) 0x0B,
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08,
+        (byte) 0x00, (byte) 0x00, (byte) 0x10, (byte) 0x00, (byte) 0x01,
+        (byte) 0x00,
+        /* - Coexistent tag allocation authority */
+        (byte) 0x79, (byte) 0x07,
+        /*   - Application identifier */
+        (byte) 0x4F, (byte) 0x05,
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08
+    };
+
+    /* GENERATE ASYMMETRIC KEY PAIR: control reference template */
+    public final static byte[] KEY_ALGORITHM = {
+        (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01
+    };
+
+    /*
+     * GENERAL AUTHENTICATE: tags of the dynamic authentication template
+     * holding the data of a private key operation, the block to sign or
+     * decipher, the public point for ECDH, the hash padded by the card and
+     * the list of blocks or hashes of a batch signature
+     */
+    public final static byte[] AUTHENTICATE_TAGS = {
+        (byte) 0x81, (byte) 0x85, (byte) 0x89, (byte) 0x8A
+    };
+
+    /* EC algorithm identifiers, each followed by the byte size of its order */
+    public final static byte[] EC_ALGORITHMS = {
+        (byte) 0x11, (byte) 32,
+        (byte) 0x14, (byte) 48
+    };
+
+    /* Hash lengths that ECDSA signs as is: SHA-1, SHA-256 and SHA-384 */
+    public final static byte[] HASH_LENGTHS = {
+        (byte) 20, (byte) 32, (byte) 48
+    };
+
+    /* DigestInfo headers of the hashes padded by the card */
+    public final static byte[] DIGEST_INFO_SHA1 = {
+        (byte) 0x30, (byte) 0x21, (byte) 0x30, (byte) 0x09, (byte) 0x06,
+        (byte) 0x05, (byte) 0x2B, (byte) 0x0E, (byte) 0x03, (byte) 0x02,
+        (byte) 0x1A, (byte) 0x05, (byte) 0x00, (byte) 0x04, (byte) 0x14
+    };
+    public final static byte[] DIGEST_INFO_SHA256 = {
+        (byte) 0x30, (byte) 0x31, (byte) 0x30, (byte) 0x0D, (byte) 0x06,
+        (byte) 0x09, (byte) 0x60, (byte) 0x86, (byte) 0x48, (byte) 0x01,
+        (byte) 0x65, (byte) 0x03, (byte) 0x04, (byte) 0x02, (byte) 0x01,
+        (byte) 0x05, (byte) 0x00, (byte) 0x04, (byte) 0x20
+    };
+    public final static byte[] DIGEST_INFO_SHA384 = {
+        (byte) 0x30, (byte) 0x41, (byte) 0x30, (byte) 0x0D, (byte) 0x06,
+        (byte) 0x09, (byte) 0x60, (byte) 0x86, (byte) 0x48, (byte) 0x01,
+        (byte) 0x65, (byte) 0x03, (byte) 0x04, (byte) 0x02, (byte) 0x02,
+        (byte) 0x05, (byte) 0x00, (byte) 0x04, (byte) 0x30
+    };
+    public final static byte[] DIGEST_INFO_SHA512 = {
+        (byte) 0x30, (byte) 0x51, (byte) 0x30, (byte) 0x0D, (byte) 0x06,
+        (byte) 0x09, (byte) 0x60, (byte) 0x86, (byte) 0x48, (byte) 0x01,
+        (byte) 0x65, (byte) 0x03, (byte) 0x04, (byte) 0x02, (byte) 0x03,
+        (byte) 0x05, (byte) 0x00, (byte) 0x04, (byte) 0x40
+    };
+
+    /* GENERAL AUTHENTICATE with the management key */
+    public final static byte[] WITNESS_REQUEST = {
+        (byte) 0x7C, (byte) 0x02, (byte) 0x80, (byte) 0x00
+    };
+    public final static byte[] WITNESS_RESPONSE = {
+        (byte) 0x7C, (byte) 0x0A, (byte) 0x80, (byte) 0x08
+    };
+    public final static byte[] CHALLENGE_REQUEST = {
+        (byte) 0x7C, (byte) 0x14, (byte) 0x80, (byte) 0x08
+    };
+    public final static byte[] CHALLENGE_RESPONSE = {
+        (byte) 0x7C, (byte) 0x0A, (byte) 0x82, (byte) 0x08
+    };
+
+    /* Never matches the management key counter, used to decrement it */
+    public final static byte[] MGMT_COUNTER_MISMATCH = {
+        (byte) 0x01, (byte) 0x01, (byte) 0x01, (byte) 0x01
+    };
+}
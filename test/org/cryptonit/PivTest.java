@@ -1,14 +1,22 @@
 package org.cryptonit;
 
 import com.licel.jcardsim.base.Simulator;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.security.KeyFactory;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.RSAPublicKeySpec;
 import java.util.Arrays;
 import java.util.Date;
-import javacard.framework.AID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.Util;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
@@ -32,24 +40,34 @@ import org.bouncycastle.asn1.x509.Time;
 import org.bouncycastle.asn1.x509.V1TBSCertificateGenerator;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.nist.NISTNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
 import org.bouncycastle.util.encoders.Base64;
+import org.cryptonit.client.PivException;
+import org.cryptonit.client.PivSession;
 import org.junit.Assert;
 import org.junit.Assume;
-import org.junit.FixMethodOrder;
 import org.junit.Test;
-import org.junit.runners.MethodSorters;
 
 /**
  * @author Mathias Brossard
  */
 
-@FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class PivTest {
-    private static Simulator simulator;
+    private Simulator simulator;
     private ResponseAPDU response;
+    private ByteArrayOutputStream download;
     private byte[] arg;
     private short sw, le;
+    private int apdus;
 
     private static String toHex(String prefix, byte[] bytes) {
         StringBuilder sb = new StringBuilder();
@@ -136,12 +154,35 @@ public class PivTest {
         return response;
     }
 
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        GZIPOutputStream gOut = new GZIPOutputStream(bOut);
+        gOut.write(data);
+        gOut.close();
+        return bOut.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        GZIPInputStream gIn = new GZIPInputStream(new ByteArrayInputStream(data));
+        byte[] b = new byte[256];
+        int l;
+        while ((l = gIn.read(b)) > 0) {
+            bOut.write(b, 0, l);
+        }
+        return bOut.toByteArray();
+    }
+
     private short uploadCRT(byte[] crt, byte id) {
+        return uploadCRT(crt, id, (byte) 0x00);
+    }
+
+    private short uploadCRT(byte[] crt, byte id, byte certInfo) {
         byte[] prefix = new byte[]{
             (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, id,
             (byte) 0x53, (byte) 0x82
         }, postfix = new byte[]{
-            (byte) 0x71, (byte) 0x01, (byte) 0x00, (byte) 0xFE, (byte) 0x00
+            (byte) 0x71, (byte) 0x01, certInfo, (byte) 0xFE, (byte) 0x00
         };
 
         short len = (short) (prefix.length + crt.length + 6 + postfix.length);
@@ -180,43 +221,108 @@ public class PivTest {
         int i = 1;
         short r = 0;
 
+        download = new ByteArrayOutputStream();
         System.out.println(String.format("Download certificate 0x5FC1%02X file part %d", id, i++));
         response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
             (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, id
         }));
         r += response.getData().length;
+        download.write(response.getData(), 0, response.getData().length);
 
         while (((sw = (short) response.getSW()) & 0xFF00) == 0x6100) {
             le = (short) (sw & 0xFF);
             System.out.println(String.format("Download certificate 0x5FC1%02X file part %d", id, i++));
             response = sendAPDU(simulator, new CommandAPDU(0x00, 0xC0, 0x00, 0x00, new byte[]{}, le));
             r += response.getData().length;
+            download.write(response.getData(), 0, response.getData().length);
         }
         Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        apdus = i - 1;
         return r;
     }
 
-    @Test
-    public void test000InitApplet() {
-        simulator = new Simulator();
-        byte[] appletAIDBytes = new byte[]{
-            (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03,
-            (byte) 0x08, (byte) 0x00, (byte) 0x00, (byte) 0x10,
-            (byte) 0x00
-        };
-        AID appletAID = new AID(appletAIDBytes, (short) 0, (byte) appletAIDBytes.length);
-        Assert.assertNotNull(appletAID);
+    private short downloadCRTExtended(byte id) {
+        System.out.println(String.format("Download certificate 0x5FC1%02X (extended length)", id));
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, id
+        }, 65536));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        return (short) response.getData().length;
+    }
 
-        Assert.assertNotNull(simulator.installApplet(appletAID, CryptonitApplet.class));
+    private static void select(Simulator simulator) {
         System.out.println("Select Applet");
-        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xA4, 0x04, 0x00, new byte[]{
+        ResponseAPDU r = sendAPDU(simulator, new CommandAPDU(0x00, 0xA4, 0x04, 0x00, new byte[]{
             (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08
         }));
-        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        Assert.assertTrue((short) r.getSW() == ISO7816.SW_NO_ERROR);
     }
 
-    @Test
-    public void test100MgmtKeyAuth() {
+    /* Sends a command and collects its whole response with GET RESPONSE */
+    private static byte[] collect(Simulator simulator, CommandAPDU command) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResponseAPDU r = sendAPDU(simulator, command);
+        out.write(r.getData(), 0, r.getData().length);
+        while ((r.getSW() & 0xFF00) == 0x6100) {
+            r = sendAPDU(simulator, new CommandAPDU(0x00, 0xC0, 0x00, 0x00,
+                    new byte[]{}, r.getSW() & 0xFF));
+            out.write(r.getData(), 0, r.getData().length);
+        }
+        return ((short) r.getSW() == ISO7816.SW_NO_ERROR) ? out.toByteArray() : null;
+    }
+
+    /*
+     * Card provisioned once with an RSA 2048 key in 9A, an EC P-256 key in
+     * 9C and an EC P-384 key in 9E, restored for each test that needs it.
+     * The public keys are the 7F49 templates returned by the card, null
+     * when an algorithm is not supported.
+     */
+    private static Snapshot provisioned;
+    private static byte[] rsaPublicKey, p256PublicKey, p384PublicKey;
+
+    private static synchronized Snapshot provisioned() {
+        if (provisioned == null) {
+            Snapshot.Card card = new Snapshot.Card();
+            select(card);
+            authenticate(card);
+            byte[][] keys = new byte[3][];
+            byte[][] slots = new byte[][]{
+                {(byte) 0x9A, (byte) 0x07}, {(byte) 0x9C, (byte) 0x11}, {(byte) 0x9E, (byte) 0x14}
+            };
+            for (int i = 0; i < slots.length; i++) {
+                System.out.println(String.format("Provision key %02X in %02X", slots[i][1], slots[i][0]));
+                keys[i] = collect(card, new CommandAPDU(0x00, 0x47, 0x00, slots[i][0], new byte[]{
+                    (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01, slots[i][1]
+                }));
+            }
+            Assert.assertNotNull(keys[0]);
+            /* Deselecting flushes the counters of the provisioning */
+            select(card);
+            rsaPublicKey = keys[0];
+            p256PublicKey = keys[1];
+            p384PublicKey = keys[2];
+            provisioned = Snapshot.take(card);
+        }
+        return provisioned;
+    }
+
+    /* New card, selected */
+    private void blank() {
+        simulator = new Snapshot.Card();
+        select(simulator);
+    }
+
+    /* Provisioned card, selected and authenticated with the management key */
+    private void provision() {
+        simulator = provisioned().restore();
+        select(simulator);
+        authenticate(simulator);
+    }
+
+    private static void authenticate(Simulator simulator) {
+        ResponseAPDU response;
+        byte[] arg;
+
         System.out.println("Management key authentication (part 1)");
         response = sendAPDU(simulator, new CommandAPDU(0x00, 0x87, 0x03, 0x9B, new byte[]{
             (byte) 0x7C, (byte) 0x02, (byte) 0x80, (byte) 0x00
@@ -251,44 +357,112 @@ public class PivTest {
     }
 
     @Test
-    public void test200RsaCrt() {        
-        System.out.println("Generate RSA key (9A)");
-        response = sendAPDU(simulator, new CommandAPDU(0x00, 0x47, 0x00, 0x9A, new byte[]{
-            (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01, (byte) 0x07
-        }));
-        arg = response.getData();
-        if (arg.length < 9 || arg[7] != 0x1 || arg[8] != 0x0) {
-            System.err.println("Error modulus");
-            Assert.fail();
-            return;
-        }
+    public void test000InitApplet() {
+        blank();
+    }
 
-        byte[] n = new byte[257];
-        byte[] e = new byte[3];
-        short s = (short) (arg.length - 9);
-        Util.arrayCopy(arg, (short) 9, n, (short) 1, s);
+    /*
+     * Lean profile: EC P-256 only, two slots, 2 KB store, 1 KB objects and
+     * no scratch area
+     */
+    @Test
+    public void test050InstallProfile() {
+        simulator = new Snapshot.Card(new byte[]{
+            (byte) 0x80, (byte) 0x01, (byte) 0x11,
+            (byte) 0x81, (byte) 0x01, (byte) 0x02,
+            (byte) 0x83, (byte) 0x02, (byte) 0x08, (byte) 0x00,
+            (byte) 0x84, (byte) 0x02, (byte) 0x04, (byte) 0x00,
+            (byte) 0x85, (byte) 0x02, (byte) 0x00, (byte) 0x00
+        });
+        PivSession session = session(simulator);
+        session.select();
+        session.authenticate(new byte[]{
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+        });
 
-        sw = (short) response.getSW();
-        le = (short) (sw & 0xFF);
-        System.out.println("Call GET RESPONSE");
-        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xC0, 0x00, 0x00, new byte[]{}, le));
-        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        System.out.println("Supported Algorithms, P-256 only");
+        byte[] obj = session.getData(new byte[]{(byte) 0x5F, (byte) 0xFF, (byte) 0x01});
+        Assert.assertTrue(obj[1] == (byte) (obj.length - 2));
+        Assert.assertTrue(obj[2] == (byte) 0x80 && obj[4] == (byte) 0x11);
+        Assert.assertTrue(obj.length == 7 + obj[6]);
 
-        arg = response.getData();
-        if(arg.length < (256 - s)) {
-            System.err.println("Error remaining modulus");
+        Assert.assertNotNull(session.generate(0x9C, 0x11));
+        Assert.assertTrue(sw(() -> session.generate(0x9A, 0x07)) == ISO7816.SW_FUNC_NOT_SUPPORTED);
+        Assert.assertTrue(sw(() -> session.generate(0x9D, 0x11)) == ISO7816.SW_INCORRECT_P1P2);
+
+        System.out.println("Objects up to 1 KB");
+        byte[] tag = new byte[]{(byte) 0x5F, (byte) 0xC1, (byte) 0x05};
+        session.putData(tag, new byte[0x3FC]);
+        Assert.assertTrue(sw(() -> session.putData(tag, new byte[0x3FD])) == ISO7816.SW_FILE_FULL);
+
+        /* Counters of the two slots only */
+        obj = session.getData(new byte[]{(byte) 0x5F, (byte) 0xFF, (byte) 0x02});
+        Assert.assertTrue(obj.length == 101 - 2 * 5);
+
+        System.out.println("Workspace for RSA 2048");
+        new Snapshot.Card(new byte[]{
+            (byte) 0x80, (byte) 0x01, (byte) 0x07,
+            (byte) 0x82, (byte) 0x02, (byte) 0x02, (byte) 0x09
+        });
+        try {
+            new Snapshot.Card(new byte[]{
+                (byte) 0x80, (byte) 0x01, (byte) 0x07,
+                (byte) 0x82, (byte) 0x02, (byte) 0x02, (byte) 0x08
+            });
             Assert.fail();
-            return;            
+        } catch (RuntimeException e) {
         }
-        Util.arrayCopy(arg, (short) 0, n, (short) (s + 1), (short) (256 - s));
 
-        s = (short) (256 - s);
-        if (arg[s] != (byte) 0x82 || arg[s + 1] != (byte) 0x3) {
-            System.err.println("Error exponent");
-            Assert.fail();
-            return;
+        System.out.println("Truncated installation data");
+        for (byte[] params : new byte[][]{
+            /* AID, control information, applet data longer than the data */
+            {(byte) 0x10, (byte) 0xA0},
+            {(byte) 0x00, (byte) 0x05, (byte) 0x00},
+            {(byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x80, (byte) 0x01},
+            /* Missing length of the applet data */
+            {(byte) 0x00, (byte) 0x00}
+        }) {
+            /* Called directly, the simulator hides the status word */
+            try {
+                CryptonitApplet.install(params, (short) 0, (byte) params.length);
+                Assert.fail();
+            } catch (ISOException e) {
+                Assert.assertTrue(e.getReason() == ISO7816.SW_WRONG_DATA);
+            }
+        }
+    }
+
+    /* Status word of a session command expected to fail */
+    private static short sw(Runnable command) {
+        try {
+            command.run();
+        } catch (PivException e) {
+            return (short) e.getSW();
         }
-        Util.arrayCopy(arg, (short) (s + 2), e, (short) 0, (short) 3);
+        return ISO7816.SW_NO_ERROR;
+    }
+
+    @Test
+    public void test100MgmtKeyAuth() {
+        blank();
+        authenticate(simulator);
+    }
+
+    @Test
+    public void test200RsaCrt() {
+        provision();
+
+        /* 7F49 82 01 09 81 82 01 00 [modulus] 82 03 [exponent] */
+        arg = rsaPublicKey;
+        Assert.assertTrue(arg.length == 270 && arg[7] == 0x1 && arg[8] == 0x0);
+        byte[] n = new byte[257];
+        byte[] e = new byte[3];
+        Util.arrayCopy(arg, (short) 9, n, (short) 1, (short) 256);
+        Assert.assertTrue(arg[265] == (byte) 0x82 && arg[266] == (byte) 0x3);
+        Util.arrayCopy(arg, (short) 267, e, (short) 0, (short) 3);
+        short s;
 
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
         TBSCertificate tbs;
@@ -357,25 +531,229 @@ public class PivTest {
         short a = uploadCRT(crt, (byte) 0x05);
         short b = downloadCRT((byte) 0x05);
         Assert.assertTrue(a == b);
+        b = downloadCRTExtended((byte) 0x05);
+        Assert.assertTrue(a == b);
+        int plainApdus = apdus;
+
+        /* Same certificate, gzip compressed (CertInfo 0x01) in slot 9E */
+        byte[] gz;
+        try {
+            gz = gzip(crt);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            Assert.fail();
+            return;
+        }
+        short c = uploadCRT(gz, (byte) 0x01, (byte) 0x01);
+        short d = downloadCRT((byte) 0x01);
+        Assert.assertTrue(c == d);
+
+        byte[] obj = download.toByteArray();
+        Assert.assertTrue(obj[0] == (byte) 0x53 && obj[4] == (byte) 0x70);
+        Assert.assertTrue(obj[obj.length - 5] == (byte) 0x71 && obj[obj.length - 3] == (byte) 0x01);
+        try {
+            Assert.assertArrayEquals(crt, gunzip(Arrays.copyOfRange(obj, 8, 8 + gz.length)));
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            Assert.fail();
+        }
+        System.out.println(String.format("Compressed certificate: %d bytes in %d APDUs, "
+                + "uncompressed: %d bytes in %d APDUs (saved %d bytes, %d APDUs)",
+                d, apdus, a, plainApdus, a - d, plainApdus - apdus));
+
+        /* Hash only signature (vendor tag 89), padded by the card */
+        byte[] hash_request = new byte[digest.length + 6];
+        hash_request[0] = (byte) 0x7C;
+        hash_request[1] = (byte) (digest.length + 4);
+        hash_request[2] = (byte) 0x82;
+        hash_request[4] = (byte) 0x89;
+        hash_request[5] = (byte) digest.length;
+        System.arraycopy(digest, 0, hash_request, 6, digest.length);
+
+        System.out.println("RSA signature of a SHA-256 hash");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0x87, 0x07, 0x9A, hash_request, 65536));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        arg = response.getData();
+        Assert.assertTrue(arg.length == 264);
+        try {
+            java.security.Signature verifier = java.security.Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(KeyFactory.getInstance("RSA").generatePublic(
+                    new RSAPublicKeySpec(new BigInteger(n), new BigInteger(e))));
+            verifier.update(bOut.toByteArray());
+            Assert.assertTrue(verifier.verify(Arrays.copyOfRange(arg, 8, arg.length)));
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+            Assert.fail();
+        }
     }
 
     @Test
-    public void test300EcdsaCrt() {        
-        System.out.println("Generate EC P256 key (9C)");
-        response = sendAPDU(simulator, new CommandAPDU(0x00, 0x47, 0x00, 0x9C, new byte[]{
-            (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01, (byte) 0x11
-        }));
-        arg = response.getData();
-        if (arg.length < 9 || arg[3] != (byte) 0x86 || arg[4] != 0x41) {
-            if ((short) response.getSW() == ISO7816.SW_FUNC_NOT_SUPPORTED) {
-                System.err.println("ECDSA not supported");
-                Assume.assumeTrue(false);
+    public void test250RsaKeySizes() {
+        provision();
+        /*
+         * Each size replaces the key objects of the slot, regeneration in
+         * place is checked by test255InPlaceRegeneration
+         */
+        byte[][] algorithms = new byte[][]{
+            {(byte) 0x06, (byte) 0x00, (byte) 0x80},
+            {(byte) 0x05, (byte) 0x01, (byte) 0x80},
+            {(byte) 0x16, (byte) 0x02, (byte) 0x00}
+        };
+        BigInteger previous = BigInteger.ZERO;
+
+        for (byte[] alg : algorithms) {
+            int k = ((alg[1] & 0xFF) << 8) | (alg[2] & 0xFF);
+            System.out.println(String.format("Generate RSA %d key (9D)", k * 8));
+            long t = System.nanoTime();
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0x47, 0x00, 0x9D, new byte[]{
+                (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01, alg[0]
+            }, 65536));
+            Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+            long gen = System.nanoTime() - t;
+
+            /* 7F49 L 81 L [modulus] 82 03 [exponent] */
+            arg = response.getData();
+            int off = (arg[2] == (byte) 0x82) ? 5 : ((arg[2] == (byte) 0x81) ? 4 : 3);
+            Assert.assertTrue(arg[off] == (byte) 0x81);
+            off += (k < 256) ? 3 : 4;
+            BigInteger n = new BigInteger(1, Arrays.copyOfRange(arg, off, off + k));
+            Assert.assertTrue(n.bitLength() == k * 8);
+            Assert.assertFalse(n.equals(previous));
+            previous = n;
+            off += k;
+            Assert.assertTrue(arg[off] == (byte) 0x82 && arg[off + 1] == (byte) 0x03);
+            BigInteger e = new BigInteger(1, Arrays.copyOfRange(arg, off + 2, off + 5));
+
+            /* Raw RSA on a PKCS#1 v1.5 style block, single extended APDU */
+            byte[] block = new byte[k];
+            Arrays.fill(block, (byte) 0xFF);
+            block[0] = 0x00;
+            block[1] = 0x01;
+            block[k - 33] = 0x00;
+            ByteArrayOutputStream req = new ByteArrayOutputStream();
+            int inner = 2 + 1 + ((k < 256) ? 2 : 3) + k;
+            req.write(0x7C);
+            if (inner < 256) {
+                req.write(0x81);
             } else {
-                System.err.println("Error EC Public key");
+                req.write(0x82);
+                req.write(inner >> 8);
             }
-            return;
+            req.write(inner);
+            req.write(0x82);
+            req.write(0x00);
+            req.write(0x81);
+            if (k < 256) {
+                req.write(0x81);
+            } else {
+                req.write(0x82);
+                req.write(k >> 8);
+            }
+            req.write(k);
+            req.write(block, 0, k);
+
+            System.out.println(String.format("RSA %d signature", k * 8));
+            t = System.nanoTime();
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0x87, alg[0], 0x9D,
+                    req.toByteArray(), 65536));
+            Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+            long sign = System.nanoTime() - t;
+
+            arg = response.getData();
+            Assert.assertTrue(arg.length == k + ((k < 256) ? 6 : 8));
+            byte[] sig = Arrays.copyOfRange(arg, arg.length - k, arg.length);
+            Assert.assertArrayEquals(block,
+                    toLength(new BigInteger(1, sig).modPow(e, n), k));
+            System.out.println(String.format("RSA %d: generation %d ms, signature %d ms",
+                    k * 8, gen / 1000000, sign / 1000000));
+        }
+    }
+
+    /*
+     * The same algorithm twice regenerates the key objects of a slot in
+     * place: the key pairs allocated (5FFF02, tag 85) do not change.
+     */
+    @Test
+    public void test255InPlaceRegeneration() throws Exception {
+        simulator = provisioned().restore();
+        PivSession session = session(simulator);
+        session.select();
+        session.authenticate(new byte[]{
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+        });
+
+        /* Algorithm and key reference: RSA 1024 in 9D, P-256 in 9E */
+        int[][] keys = new int[][]{{0x06, 0x9D}, {0x11, 0x9E}};
+        byte[][] templates = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            System.out.println(String.format("Generate key %02X in %02X twice", keys[i][0], keys[i][1]));
+            byte[] first = session.generate(keys[i][1], keys[i][0]);
+            int allocations = counter(readCounters(), 76);
+            templates[i] = session.generate(keys[i][1], keys[i][0]);
+            Assert.assertEquals(allocations, counter(readCounters(), 76));
+            Assert.assertFalse(Arrays.equals(first, templates[i]));
         }
 
+        /*
+         * jcardsim workaround: its keys read a component from the whole
+         * backing array, so a key regenerated in place misreads a component
+         * that got shorter. The snapshot rebuilds the key objects: this half
+         * checks the regenerated values, not signing with the objects kept.
+         */
+        simulator = Snapshot.take((Snapshot.Card) simulator).restore();
+        session = session(simulator);
+        session.select();
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+
+        System.out.println("RSA 1024 (9D) signature with the regenerated key");
+        byte[] t = templates[0];
+        int o = PivSession.skipLength(t, 2);
+        int l = PivSession.readLength(t, o + 1);
+        o = PivSession.skipLength(t, o + 1);
+        BigInteger n = new BigInteger(1, Arrays.copyOfRange(t, o, o + l));
+        BigInteger e = new BigInteger(1, Arrays.copyOfRange(t, o + l + 2, t.length));
+        byte[] block = new byte[l];
+        Arrays.fill(block, (byte) 0xFF);
+        block[0] = 0x00;
+        block[1] = 0x01;
+        block[l - 33] = 0x00;
+        byte[] sig = session.sign(0x06, 0x9D, block);
+        Assert.assertArrayEquals(block, toLength(new BigInteger(1, sig).modPow(e, n), l));
+
+        System.out.println("EC P256 (9E) signature with the regenerated key");
+        t = templates[1];
+        X9ECParameters curve = NISTNamedCurves.getByName("P-256");
+        ECDSASigner verifier = new ECDSASigner();
+        verifier.init(false, new ECPublicKeyParameters(
+                curve.getCurve().decodePoint(Arrays.copyOfRange(t, 5, t.length)),
+                new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH())));
+        byte[] hash = new byte[32];
+        new SecureRandom().nextBytes(hash);
+        ASN1Sequence seq = ASN1Sequence.getInstance(session.sign(0x11, 0x9E, hash));
+        Assert.assertTrue(verifier.verifySignature(hash,
+                ASN1Integer.getInstance(seq.getObjectAt(0)).getValue(),
+                ASN1Integer.getInstance(seq.getObjectAt(1)).getValue()));
+    }
+
+    private static byte[] toLength(BigInteger v, int length) {
+        byte[] b = v.toByteArray();
+        byte[] r = new byte[length];
+        int l = Math.min(b.length, length);
+        System.arraycopy(b, b.length - l, r, length - l, l);
+        return r;
+    }
+
+    @Test
+    public void test300EcdsaCrt() {
+        provision();
+        Assume.assumeNotNull(p256PublicKey);
+        arg = p256PublicKey;
+        Assert.assertTrue(arg.length == 70 && arg[3] == (byte) 0x86 && arg[4] == 0x41);
+
         byte[] prefix = new byte[]{
             (byte) 0x30, (byte) 0x59, (byte) 0x30, (byte) 0x13, (byte) 0x06,
             (byte) 0x07, (byte) 0x2A, (byte) 0x86, (byte) 0x48, (byte) 0xCE,
@@ -425,10 +803,547 @@ public class PivTest {
         short a = uploadCRT(crt, (byte) 0x0A);
         short b = downloadCRT((byte) 0x0A);
         Assert.assertTrue(a == b);
+
+        /* The card signs the host digest as is */
+        try {
+            X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(crt));
+            cert.verify(cert.getPublicKey());
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public void test350EcdsaDigests() {
+        provision();
+        System.out.println("Supported algorithms");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xFF, (byte) 0x01
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        Assert.assertArrayEquals(new byte[]{
+            (byte) 0x53, (byte) 0x0F,
+            (byte) 0x80, (byte) 0x01, (byte) 0x11, (byte) 0x81, (byte) 0x02, (byte) 0x14, (byte) 0x20,
+            (byte) 0x80, (byte) 0x01, (byte) 0x14, (byte) 0x81, (byte) 0x03, (byte) 0x14, (byte) 0x20, (byte) 0x30
+        }, response.getData());
+
+        Assume.assumeNotNull(p384PublicKey);
+        arg = p384PublicKey;
+        Assert.assertTrue(arg[3] == (byte) 0x86 && arg[4] == 0x61);
+
+        X9ECParameters curve = NISTNamedCurves.getByName("P-384");
+        ECDomainParameters domain = new ECDomainParameters(curve.getCurve(),
+                curve.getG(), curve.getN(), curve.getH());
+        ECDSASigner verifier = new ECDSASigner();
+        verifier.init(false, new ECPublicKeyParameters(
+                curve.getCurve().decodePoint(Arrays.copyOfRange(arg, 5, arg.length)), domain));
+
+        /* SHA-512 is longer than the curve order and truncated by the card */
+        for (String alg : new String[]{"SHA1", "SHA-256", "SHA-384", "SHA-512"}) {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            bOut.write(alg.length());
+            byte[] digest = digest(bOut, alg);
+            byte[] request = new byte[digest.length + 6];
+            request[0] = (byte) 0x7C;
+            request[1] = (byte) (digest.length + 4);
+            request[2] = (byte) 0x82;
+            request[4] = (byte) 0x81;
+            request[5] = (byte) digest.length;
+            System.arraycopy(digest, 0, request, 6, digest.length);
+
+            System.out.println(String.format("EC P384 (9E) signature of a %s digest", alg));
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0x87, 0x14, 0x9E, request));
+            Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+            arg = response.getData();
+            ASN1Sequence seq = ASN1Sequence.getInstance(Arrays.copyOfRange(arg, 4, arg.length));
+            Assert.assertTrue(verifier.verifySignature(digest,
+                    ASN1Integer.getInstance(seq.getObjectAt(0)).getValue(),
+                    ASN1Integer.getInstance(seq.getObjectAt(1)).getValue()));
+        }
+    }
+
+    private void rotateCRT(byte[] fills, byte id, int length, byte fill) {
+        byte[] crt = new byte[length];
+        Arrays.fill(crt, fill);
+        short a = uploadCRT(crt, id);
+        short b = downloadCRT(id);
+        Assert.assertTrue(a == b);
+        fills[id] = fill;
+    }
+
+    @Test
+    public void test360Ecdh() {
+        provision();
+        String[] curves = new String[]{"P-256", "P-384"};
+        byte[] algorithms = new byte[]{(byte) 0x11, (byte) 0x14};
+
+        for (int i = 0; i < curves.length; i++) {
+            System.out.println(String.format("Generate EC %s key (9D)", curves[i]));
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0x47, 0x00, 0x9D, new byte[]{
+                (byte) 0xAC, (byte) 0x03, (byte) 0x80, (byte) 0x01, algorithms[i]
+            }));
+            Assume.assumeTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+            arg = response.getData();
+
+            X9ECParameters curve = NISTNamedCurves.getByName(curves[i]);
+            ECDomainParameters domain = new ECDomainParameters(curve.getCurve(),
+                    curve.getG(), curve.getN(), curve.getH());
+            ECPublicKeyParameters card = new ECPublicKeyParameters(
+                    curve.getCurve().decodePoint(Arrays.copyOfRange(arg, 5, arg.length)), domain);
+
+            ECKeyPairGenerator generator = new ECKeyPairGenerator();
+            generator.init(new ECKeyGenerationParameters(domain, new SecureRandom()));
+            AsymmetricCipherKeyPair host = generator.generateKeyPair();
+            byte[] point = ((ECPublicKeyParameters) host.getPublic()).getQ().getEncoded(false);
+
+            byte[] request = new byte[point.length + 6];
+            request[0] = (byte) 0x7C;
+            request[1] = (byte) (point.length + 4);
+            request[2] = (byte) 0x82;
+            request[4] = (byte) 0x85;
+            request[5] = (byte) point.length;
+            System.arraycopy(point, 0, request, 6, point.length);
+
+            System.out.println(String.format("EC %s (9D) key agreement", curves[i]));
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0x87, algorithms[i], 0x9D, request));
+            Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+
+            ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+            agreement.init(host.getPrivate());
+            int f = (point.length - 1) / 2;
+            byte[] z = toLength(agreement.calculateAgreement(card), f);
+            arg = response.getData();
+            Assert.assertTrue(arg.length == f + 4 && arg[0] == (byte) 0x7C && arg[2] == (byte) 0x82);
+            Assert.assertArrayEquals(z, Arrays.copyOfRange(arg, 4, arg.length));
+
+            if (i == 1) {
+                System.out.println("Key agreement is reserved to key management keys");
+                response = sendAPDU(simulator, new CommandAPDU(0x00, 0x87, algorithms[i], 0x9E, request));
+                Assert.assertTrue((short) response.getSW() == ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+        }
+    }
+
+    /* Retired key management slots, mapped after the four PIV slots */
+    @Test
+    public void test370RetiredSlots() {
+        provision();
+        PivSession session = session(simulator);
+        byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) 0x5A);
+
+        for (int slot : new int[]{0x82, 0x8B, 0x95}) {
+            System.out.println(String.format("Generate and use key %02X", slot));
+            Assert.assertNotNull(session.generate(slot, 0x11));
+            Assert.assertTrue(session.sign(0x11, slot, hash).length > 0);
+        }
+
+        System.out.println("EC P-256 (95) key agreement");
+        X9ECParameters curve = NISTNamedCurves.getByName("P-256");
+        ECDomainParameters domain = new ECDomainParameters(curve.getCurve(),
+                curve.getG(), curve.getN(), curve.getH());
+        byte[] template = session.generate(0x95, 0x11);
+        ECPublicKeyParameters card = new ECPublicKeyParameters(
+                curve.getCurve().decodePoint(Arrays.copyOfRange(template, 5, template.length)), domain);
+        ECKeyPairGenerator generator = new ECKeyPairGenerator();
+        generator.init(new ECKeyGenerationParameters(domain, new SecureRandom()));
+        AsymmetricCipherKeyPair host = generator.generateKeyPair();
+        byte[] point = ((ECPublicKeyParameters) host.getPublic()).getQ().getEncoded(false);
+        ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+        agreement.init(host.getPrivate());
+        Assert.assertArrayEquals(toLength(agreement.calculateAgreement(card), 32),
+                Arrays.copyOfRange(session.generalAuthenticate(0x11, 0x95, 0x85, point), 4, 36));
+        Assert.assertTrue(sw(() -> session.generate(0x96, 0x11)) == ISO7816.SW_INCORRECT_P1P2);
+        Assert.assertTrue(sw(() -> session.generate(0x81, 0x11)) == ISO7816.SW_INCORRECT_P1P2);
+        Assert.assertTrue(sw(() -> session.generate(0x9B, 0x11)) == ISO7816.SW_INCORRECT_P1P2);
+        Assert.assertTrue(sw(() -> session.sign(0x11, 0x83, hash)) == ISO7816.SW_INCORRECT_P1P2);
+    }
+
+    @Test
+    public void test400ObjectRotation() {
+        provision();
+        byte[] fills = new byte[0x20];
+
+        /* Fill most of the object store with retired certificates */
+        for (byte id = 0x0D; id <= 0x11; id++) {
+            rotateCRT(fills, id, 1300, id);
+        }
+        /* Growing objects moves them, until the store must be compacted */
+        rotateCRT(fills, (byte) 0x0D, 1900, (byte) 0x20);
+        rotateCRT(fills, (byte) 0x0E, 1900, (byte) 0x21);
+        /* Freed space is reused by new objects */
+        rotateCRT(fills, (byte) 0x0F, 300, (byte) 0x22);
+        rotateCRT(fills, (byte) 0x12, 1000, (byte) 0x23);
+        rotateCRT(fills, (byte) 0x13, 1200, (byte) 0x24);
+        rotateCRT(fills, (byte) 0x12, 1100, (byte) 0x25);
+        rotateCRT(fills, (byte) 0x14, 900, (byte) 0x26);
+
+        /* Repeated rotation of the same certificates never fills the store */
+        for (int i = 0; i < 40; i++) {
+            rotateCRT(fills, (byte) (0x0D + (i % 3)), 300 + (i % 4) * 300, (byte) i);
+        }
+
+        for (byte id = 0x0D; id <= 0x14; id++) {
+            downloadCRT(id);
+            byte[] obj = download.toByteArray();
+            Assert.assertTrue(obj[8] == fills[id] && obj[obj.length - 6] == fills[id]);
+        }
+
+        /* An interrupted upload leaves the previous version in place */
+        byte[] chunk = new byte[255];
+        Arrays.fill(chunk, (byte) 0x55);
+        System.arraycopy(new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D,
+            (byte) 0x53, (byte) 0x82, (byte) 0x02, (byte) 0x00
+        }, 0, chunk, 0, 9);
+        System.out.println("Interrupted upload of 5FC10D");
+        response = sendAPDU(simulator, new CommandAPDU(0x10, 0xDB, 0x3F, 0xFF, chunk));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        downloadCRT((byte) 0x0D);
+        byte[] obj = download.toByteArray();
+        Assert.assertTrue(obj[8] == fills[0x0D] && obj[obj.length - 6] == fills[0x0D]);
+        rotateCRT(fills, (byte) 0x0D, 600, (byte) 0x27);
+
+        /* No room for a second version: the upload is refused, not staged */
+        provision();
+        rotateCRT(fills, (byte) 0x05, 5500, (byte) 0x28);
+        rotateCRT(fills, (byte) 0x0A, 5500, (byte) 0x29);
+        System.arraycopy(new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x05,
+            (byte) 0x53, (byte) 0x82, (byte) 0x15, (byte) 0x80
+        }, 0, chunk, 0, 9);
+        System.out.println("Upload of 5FC105 larger than the free space");
+        response = sendAPDU(simulator, new CommandAPDU(0x10, 0xDB, 0x3F, 0xFF, chunk));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_FILE_FULL);
+        select(simulator);
+        downloadCRT((byte) 0x05);
+        obj = download.toByteArray();
+        Assert.assertTrue(obj[8] == fills[0x05] && obj[obj.length - 6] == fills[0x05]);
+    }
+
+    private static int counter(byte[] obj, int offset) {
+        return new BigInteger(1, Arrays.copyOfRange(obj, offset, offset + 4)).intValue();
+    }
+
+    private byte[] readCounters() {
+        System.out.println("Get Performance Counters (5FFF02)");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xFF, (byte) 0x02
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        byte[] obj = response.getData();
+        Assert.assertTrue(obj.length == 202 && obj[0] == (byte) 0x53
+                && obj[1] == (byte) 0x81 && obj[2] == (byte) 0xC7);
+        Assert.assertTrue(obj[3] == (byte) 0xA0 && obj[4] == (byte) 0x2D);
+        Assert.assertTrue(obj[50] == (byte) 0x81 && obj[74] == (byte) 0x85);
+        Assert.assertTrue(obj[80] == (byte) 0xA6 && obj[81] == (byte) 0x78);
+        return obj;
+    }
+
+    @Test
+    public void test450Counters() {
+        provision();
+
+        /* Raw RSA with the 9A key, chained and completed by GET RESPONSE */
+        byte[] request = new byte[266];
+        Arrays.fill(request, (byte) 0xFF);
+        System.arraycopy(new byte[]{
+            (byte) 0x7C, (byte) 0x82, (byte) 0x01, (byte) 0x06,
+            (byte) 0x82, (byte) 0x00,
+            (byte) 0x81, (byte) 0x82, (byte) 0x01, (byte) 0x00,
+            (byte) 0x00, (byte) 0x01
+        }, 0, request, 0, 12);
+        System.out.println("RSA (9A) signature");
+        response = sendAPDU(simulator, new CommandAPDU(0x10, 0x87, 0x07, 0x9A,
+                Arrays.copyOfRange(request, 0, 255)));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        Assert.assertNotNull(collect(simulator, new CommandAPDU(0x00, 0x87, 0x07, 0x9A,
+                Arrays.copyOfRange(request, 255, request.length))));
+
+        /*
+         * Calls (A0) start at 5, one entry per INS, slots (A6) at 82. Key
+         * allocations were counted when the card was provisioned.
+         */
+        byte[] obj = readCounters();
+        Assert.assertTrue(obj[5 + 5 * 7] == (byte) 0x87 && counter(obj, 6 + 5 * 7) > 0);
+        Assert.assertTrue(obj[5 + 5 * 4] == (byte) 0xC0 && counter(obj, 6 + 5 * 4) > 0);
+        Assert.assertTrue(counter(obj, 52) > 0 && counter(obj, 58) > 0);
+        Assert.assertTrue(counter(obj, 64) == counter(obj, 6 + 5 * 4));
+        Assert.assertTrue(counter(obj, 70) > 0 && counter(obj, 76) > 0);
+        Assert.assertTrue(obj[82] == (byte) 0x9A && counter(obj, 83) == 1);
+        Assert.assertTrue(obj[82 + 5 * 4] == (byte) 0x82 && obj[82 + 5 * 23] == (byte) 0x95);
+
+        System.out.println("Reset Performance Counters");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xFF, (byte) 0x02,
+            (byte) 0x53, (byte) 0x00
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+
+        /* Only the GET DATA reading them is counted */
+        obj = readCounters();
+        for (int i = 0; i < 9; i++) {
+            Assert.assertTrue(counter(obj, 6 + 5 * i) == ((obj[5 + 5 * i] == (byte) 0xCB) ? 1 : 0));
+        }
+        Assert.assertTrue(counter(obj, 52) == 5 && counter(obj, 58) == 0);
+        Assert.assertTrue(counter(obj, 83) == 0);
+
+        System.out.println("Select Applet again, counts are kept");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xA4, 0x04, 0x00, new byte[]{
+            (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x08
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        System.out.println("Verify PIN");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0x20, 0x00, 0x80, new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        obj = readCounters();
+        Assert.assertTrue(obj[5] == (byte) 0xA4 && counter(obj, 6) == 1);
+        Assert.assertTrue(counter(obj, 6 + 5 * 3) == 2);
+
+        System.out.println("Reset Performance Counters with the PIN only");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xFF, (byte) 0x02,
+            (byte) 0x53, (byte) 0x00
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+    }
+
+    /* Session over the simulator, logging the APDUs like sendAPDU */
+    private static PivSession session(Simulator simulator) {
+        return new PivSession(command -> {
+            System.out.println(toHex(" > ", command));
+            byte[] r = simulator.transmitCommand(command);
+            System.out.println(toHex(" < ", Arrays.copyOf(r, r.length - 2))
+                    + String.format("[sw=%02X%02X l=%d]", r[r.length - 2], r[r.length - 1], r.length - 2));
+            return r;
+        });
+    }
+
+    @Test
+    public void test460Session() throws Exception {
+        simulator = provisioned().restore();
+        PivSession session = session(simulator);
+
+        System.out.println("Select Applet, extended length advertised");
+        session.select();
+        Assert.assertTrue(session.isExtended());
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+        session.authenticate(new byte[]{
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08
+        });
+
+        /* Same object written and read over short then extended APDUs */
+        byte[] tag = new byte[]{(byte) 0x5F, (byte) 0xC1, (byte) 0x0D};
+        byte[] value = new byte[3000];
+        new SecureRandom().nextBytes(value);
+        byte[] expected = new byte[value.length + 4];
+        System.arraycopy(new byte[]{(byte) 0x53, (byte) 0x82, (byte) 0x0B, (byte) 0xB8},
+                0, expected, 0, 4);
+        System.arraycopy(value, 0, expected, 4, value.length);
+        long[] apdus = new long[2];
+        for (int i = 0; i < 2; i++) {
+            System.out.println((i == 0) ? "Short APDUs" : "Extended APDUs");
+            session.setExtended(i == 1);
+            session.putData(tag, value);
+            session.resetCounters();
+            Assert.assertArrayEquals(expected, session.getData(tag));
+            apdus[i] = session.getApdus();
+        }
+        Assert.assertTrue(apdus[0] > 1 && apdus[1] == 1);
+
+        System.out.println("RSA (9A) signature");
+        byte[] block = new byte[256];
+        Arrays.fill(block, (byte) 0xFF);
+        block[0] = 0x00;
+        block[1] = 0x01;
+        block[block.length - 33] = 0x00;
+        byte[] signature = session.sign(0x07, 0x9A, block);
+        Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(new BigInteger(1, Arrays.copyOfRange(rsaPublicKey, 9, 265)),
+                        new BigInteger(1, Arrays.copyOfRange(rsaPublicKey, 267, 270)))));
+        Assert.assertArrayEquals(block, cipher.doFinal(signature));
+
+        System.out.println("Wrong PIN");
+        try {
+            session.verify(new byte[]{0x30, 0x30, 0x30, 0x30});
+            Assert.fail();
+        } catch (PivException e) {
+            Assert.assertTrue(e.getTriesRemaining() >= 0);
+        }
+    }
+
+    /* Sends the template in chained chunks cut at the given offsets */
+    private static ResponseAPDU chain(Simulator simulator, byte[] template, int... cuts) {
+        ResponseAPDU response = null;
+        int from = 0;
+        for (int i = 0; i <= cuts.length; i++) {
+            int to = (i < cuts.length) ? cuts[i] : template.length;
+            response = new ResponseAPDU(simulator.transmitCommand(new CommandAPDU(
+                    (i < cuts.length) ? 0x10 : 0x00, 0x87, 0x07, 0x9A,
+                    Arrays.copyOfRange(template, from, to)).getBytes()));
+            if ((i < cuts.length) && (response.getSW() != 0x9000)) {
+                break;
+            }
+            from = to;
+        }
+        return response;
+    }
+
+    @Test
+    public void test470ChainedTemplate() throws Exception {
+        simulator = provisioned().restore();
+        PivSession session = session(simulator);
+        session.select();
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+
+        byte[] block = new byte[256];
+        Arrays.fill(block, (byte) 0xFF);
+        block[0] = 0x00;
+        block[1] = 0x01;
+        block[block.length - 33] = 0x00;
+        byte[] expected = session.sign(0x07, 0x9A, block);
+
+        /* 7C 82 01 06 { 82 00, 81 82 01 00 [block] } */
+        byte[] template = new byte[block.length + 10];
+        System.arraycopy(new byte[]{
+            (byte) 0x7C, (byte) 0x82, (byte) 0x01, (byte) 0x06,
+            (byte) 0x82, (byte) 0x00,
+            (byte) 0x81, (byte) 0x82, (byte) 0x01, (byte) 0x00
+        }, 0, template, 0, 10);
+        System.arraycopy(block, 0, template, 10, block.length);
+
+        System.out.println("Chained template, headers split across chunks");
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+        ResponseAPDU response = chain(simulator, template, 2, 5, 8, 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(response.getData());
+        while (response.getSW1() == 0x61) {
+            response = new ResponseAPDU(simulator.transmitCommand(
+                    new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 256).getBytes()));
+            out.write(response.getData());
+        }
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(out.toByteArray(), 8, 264));
+
+        /* The 256-byte last chunk is an extended APDU, answered at once */
+        System.out.println("Chained template, value entirely in the last chunk");
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+        response = chain(simulator, template, 6, 10);
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(response.getData(), 8, 264));
+
+        System.out.println("Malformed and truncated templates");
+        byte[] wrong = template.clone();
+        wrong[0] = (byte) 0x7D;
+        Assert.assertEquals(ISO7816.SW_DATA_INVALID, chain(simulator, wrong, 100).getSW());
+        Assert.assertEquals(ISO7816.SW_DATA_INVALID,
+                chain(simulator, Arrays.copyOf(template, 200), 100).getSW());
+        wrong = template.clone();
+        wrong[9] = (byte) 0x01;
+        Assert.assertEquals(ISO7816.SW_DATA_INVALID, chain(simulator, wrong, 100).getSW());
+
+        System.out.println("Repeated tag, chained and in a single APDU");
+        byte[] twice = new byte[]{
+            (byte) 0x7C, (byte) 0x08,
+            (byte) 0x81, (byte) 0x02, (byte) 0x11, (byte) 0x11,
+            (byte) 0x81, (byte) 0x02, (byte) 0x22, (byte) 0x22
+        };
+        Assert.assertEquals(ISO7816.SW_WRONG_DATA, chain(simulator, twice, 4).getSW());
+        Assert.assertEquals(ISO7816.SW_WRONG_DATA, chain(simulator, twice).getSW());
+
+        System.out.println("Interrupted chain is forgotten");
+        ResponseAPDU first = new ResponseAPDU(simulator.transmitCommand(new CommandAPDU(
+                0x10, 0x87, 0x07, 0x9A, Arrays.copyOf(template, 100)).getBytes()));
+        Assert.assertEquals(0x9000, first.getSW());
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+        Assert.assertEquals(0x61, chain(simulator, template, 100).getSW1());
+    }
+
+    @Test
+    public void test480BatchSignature() throws Exception {
+        simulator = provisioned().restore();
+        PivSession session = session(simulator);
+        session.select();
+        session.verify(new byte[]{
+            0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
+        });
+        SecureRandom random = new SecureRandom();
+
+        X9ECParameters curve = NISTNamedCurves.getByName("P-256");
+        ECDomainParameters domain = new ECDomainParameters(curve.getCurve(),
+                curve.getG(), curve.getN(), curve.getH());
+        ECDSASigner verifier = new ECDSASigner();
+        verifier.init(false, new ECPublicKeyParameters(curve.getCurve().decodePoint(
+                Arrays.copyOfRange(p256PublicKey, 5, p256PublicKey.length)), domain));
+
+        /* Signatures returned from the scratch area over GET RESPONSE */
+        byte[][] hashes = new byte[12][32];
+        for (byte[] h : hashes) {
+            random.nextBytes(h);
+        }
+        for (int i = 0; i < 2; i++) {
+            System.out.println((i == 0) ? "EC P256 (9C) batch, short APDUs"
+                    : "EC P256 (9C) batch, extended APDUs");
+            session.setExtended(i == 1);
+            byte[][] signatures = session.signBatch(0x11, 0x9C, 0x81, hashes);
+            for (int j = 0; j < hashes.length; j++) {
+                ASN1Sequence seq = ASN1Sequence.getInstance(signatures[j]);
+                Assert.assertTrue(verifier.verifySignature(hashes[j],
+                        ASN1Integer.getInstance(seq.getObjectAt(0)).getValue(),
+                        ASN1Integer.getInstance(seq.getObjectAt(1)).getValue()));
+            }
+        }
+
+        System.out.println("RSA (9A) batch of hashes padded by the card");
+        session.setExtended(false);
+        java.security.Signature rsa = java.security.Signature.getInstance("SHA256withRSA");
+        rsa.initVerify(KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(new BigInteger(1, Arrays.copyOfRange(rsaPublicKey, 9, 265)),
+                        new BigInteger(1, Arrays.copyOfRange(rsaPublicKey, 267, 270)))));
+        byte[][] messages = new byte[16][100];
+        hashes = new byte[16][];
+        for (int j = 0; j < messages.length; j++) {
+            random.nextBytes(messages[j]);
+            hashes[j] = MessageDigest.getInstance("SHA-256").digest(messages[j]);
+        }
+        byte[][] signatures = session.signBatch(0x07, 0x9A, 0x89, hashes);
+        for (int j = 0; j < messages.length; j++) {
+            rsa.update(messages[j]);
+            Assert.assertTrue(rsa.verify(signatures[j]));
+        }
+
+        System.out.println("Batch larger than the workspace, malformed list");
+        byte[] hash = hashes[0];
+        byte[][] more = new byte[23][];
+        Arrays.fill(more, hash);
+        Assert.assertTrue(sw(() -> session.signBatch(0x07, 0x9A, 0x89, more))
+                == ISO7816.SW_FILE_FULL);
+        Assert.assertTrue(sw(() -> session.signBatch(0x11, 0x9C, 0x85, new byte[][]{hash}))
+                == ISO7816.SW_DATA_INVALID);
+        Assert.assertTrue(sw(() -> session.signBatch(0x11, 0x9C, 0x81, new byte[][]{new byte[0]}))
+                == ISO7816.SW_DATA_INVALID);
     }
 
     @Test
     public void test999Other() {
+        provision();
         System.out.println("Set Card Capabilities Container");
         response = sendAPDU(simulator, new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[]{
             (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x07,
@@ -465,6 +1380,79 @@ public class PivTest {
         }));
         Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
 
+        System.out.println("Read CHUID GUID (offset 0x1F, 16 bytes)");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x00, 0x1F, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x02
+        }, 16));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        Assert.assertArrayEquals(new byte[]{
+            (byte) 0xFB, (byte) 0x0C, (byte) 0xB0, (byte) 0x46,
+            (byte) 0x75, (byte) 0x85, (byte) 0xD3, (byte) 0x8D,
+            (byte) 0xE2, (byte) 0xA4, (byte) 0x96, (byte) 0x83,
+            (byte) 0x5E, (byte) 0x0D, (byte) 0xA7, (byte) 0x78
+        }, response.getData());
+
+        System.out.println("Read CHUID past its end");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x01, 0x00, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x02
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_WRONG_P1P2);
+
+        System.out.println("Read CHUID with P1-P2 outside the offset range");
+        for (int p1p2 : new int[]{0x3F00, 0x3FFE, 0x8000, 0xFFFF}) {
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, p1p2 >> 8, p1p2 & 0xFF,
+                    new byte[]{
+                        (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x02
+                    }));
+            Assert.assertTrue((short) response.getSW() == ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        System.out.println("Set retired key management certificate 1 (5FC10D)");
+        arg = new byte[]{
+            (byte) 0x53, (byte) 0x09, (byte) 0x70, (byte) 0x02, (byte) 0x30,
+            (byte) 0x00, (byte) 0x71, (byte) 0x01, (byte) 0x00, (byte) 0xFE,
+            (byte) 0x00
+        };
+        byte[] put = new byte[5 + arg.length];
+        System.arraycopy(new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D
+        }, 0, put, 0, 5);
+        System.arraycopy(arg, 0, put, 5, arg.length);
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, put));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+
+        System.out.println("Get retired key management certificate 1 (5FC10D)");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_NO_ERROR);
+        Assert.assertArrayEquals(arg, response.getData());
+
+        System.out.println("Set 5FC10D with a header outside the command");
+        for (byte[] data : new byte[][]{
+            /* Length of the value missing, invalid, cut */
+            {(byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D, (byte) 0x53},
+            {(byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D, (byte) 0x53,
+                (byte) 0x83, (byte) 0x00, (byte) 0x00, (byte) 0x01},
+            {(byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D, (byte) 0x53,
+                (byte) 0x82, (byte) 0x10},
+            /* Tag list longer than the command */
+            {(byte) 0x5C, (byte) 0x09, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D, (byte) 0x53}
+        }) {
+            response = sendAPDU(simulator, new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, data));
+            Assert.assertTrue((short) response.getSW() == ISO7816.SW_WRONG_DATA);
+        }
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x0D
+        }));
+        Assert.assertArrayEquals(arg, response.getData());
+
+        System.out.println("Get undefined object (5FC104)");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x04
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_FILE_NOT_FOUND);
+
         System.out.println("Change PIN");
         response = sendAPDU(simulator, new CommandAPDU(0x00, 0x24, 0x00, 0x80, new byte[]{
             0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38,
@@ -483,5 +1471,11 @@ public class PivTest {
             0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38
         }));
         Assert.assertTrue((short) response.getSW() == (CryptonitApplet.SW_PIN_TRIES_REMAINING | 4));
+
+        System.out.println("Get Printed Information without PIN");
+        response = sendAPDU(simulator, new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[]{
+            (byte) 0x5C, (byte) 0x03, (byte) 0x5F, (byte) 0xC1, (byte) 0x09
+        }));
+        Assert.assertTrue((short) response.getSW() == ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
     }
 }
@@ -0,0 +1,233 @@
+package org.cryptonit;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import javacard.framework.OwnerPIN;
+import javacard.security.DESKey;
+import javacard.security.ECKey;
+import javacard.security.ECPrivateKey;
+import javacard.security.ECPublicKey;
+import javacard.security.Key;
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+import javacard.security.PrivateKey;
+import javacard.security.PublicKey;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.RSAPublicKey;
+
+/**
+ * Persistent state of an installed applet: keys, objects of the store, PIN
+ * and management key counters. A snapshot is restored into a new
+ * simulator, so that tests start from a provisioned card without
+ * depending on each other and can run in parallel.
+ *
+ * The state is copied field by field: arrays and objects of the applet
+ * are copied in place, keys through the Java Card key interfaces. Transient
+ * arrays and the crypto engines are left as created by the applet
+ * constructor, as they would be on a freshly selected card.
+ */
+
+public class Snapshot {
+    public final static byte[] AID_BYTES = new byte[]{
+        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x03,
+        (byte) 0x08, (byte) 0x00, (byte) 0x00, (byte) 0x10,
+        (byte) 0x00
+    };
+    public final static AID APPLET_AID = new AID(AID_BYTES, (short) 0,
+            (byte) AID_BYTES.length);
+
+    /** Simulator with its own runtime, giving access to the applet. */
+    public static class Card extends Simulator {
+        public Card() {
+            super(new SimulatorRuntime());
+            installApplet(APPLET_AID, CryptonitApplet.class);
+        }
+
+        /* Installed with the given applet specific parameters */
+        public Card(byte[] data) {
+            super(new SimulatorRuntime());
+            byte[] params = new byte[AID_BYTES.length + data.length + 3];
+            params[0] = (byte) AID_BYTES.length;
+            System.arraycopy(AID_BYTES, 0, params, 1, AID_BYTES.length);
+            params[AID_BYTES.length + 2] = (byte) data.length;
+            System.arraycopy(data, 0, params, AID_BYTES.length + 3, data.length);
+            installApplet(APPLET_AID, CryptonitApplet.class, params, (short) 0,
+                    (byte) params.length);
+        }
+
+        Applet applet() {
+            return runtime.lookupApplet(APPLET_AID).getApplet();
+        }
+
+        boolean isTransient(Object o) {
+            return runtime.getTransientMemory().isTransient(o) != 0;
+        }
+    }
+
+    /* Applet holding the copy, never selected */
+    private final Card vault;
+
+    private Snapshot(Card vault) {
+        this.vault = vault;
+    }
+
+    /** Captures the state of the applet installed in card. */
+    public static Snapshot take(Card card) {
+        Card vault = new Card();
+        new Copy(card).object(card.applet(), vault.applet());
+        return new Snapshot(vault);
+    }
+
+    /** Returns a new card with the captured state, not selected yet. */
+    public Card restore() {
+        Card card = new Card();
+        synchronized (vault) {
+            new Copy(vault).object(vault.applet(), card.applet());
+        }
+        return card;
+    }
+
+    private static class Copy {
+        private final Card from;
+        private final Map<Object, Object> copies = new IdentityHashMap<>();
+        private final byte[] buf = new byte[1024];
+
+        Copy(Card from) {
+            this.from = from;
+        }
+
+        /* Copies the fields of src into dst, of the same class */
+        void object(Object src, Object dst) {
+            copies.put(src, dst);
+            for (Class<?> c = src.getClass(); (c != Object.class) && (c != Applet.class);
+                    c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    int m = f.getModifiers();
+                    if (Modifier.isStatic(m)) {
+                        continue;
+                    }
+                    f.setAccessible(true);
+                    try {
+                        Object s = f.get(src), d = f.get(dst);
+                        if (f.getType().isPrimitive()) {
+                            if (!Modifier.isFinal(m)) {
+                                f.set(dst, s);
+                            }
+                        } else {
+                            Object v = value(s, d, f);
+                            if (v != d) {
+                                f.set(dst, v);
+                            }
+                        }
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+
+        /* Returns the copy of s, d being the current value in place of it */
+        Object value(Object s, Object d, Object where) {
+            if (s == null) {
+                return null;
+            }
+            if (copies.containsKey(s)) {
+                return copies.get(s);
+            }
+            if (s.getClass().isArray()) {
+                if (from.isTransient(s)) {
+                    return d;
+                }
+                int l = Array.getLength(s);
+                if ((d == null) || (Array.getLength(d) != l)) {
+                    d = Array.newInstance(s.getClass().getComponentType(), l);
+                }
+                copies.put(s, d);
+                if (s.getClass().getComponentType().isPrimitive()) {
+                    System.arraycopy(s, 0, d, 0, l);
+                } else {
+                    for (int i = 0; i < l; i++) {
+                        Array.set(d, i, value(Array.get(s, i), Array.get(d, i), where));
+                    }
+                }
+                return d;
+            }
+            if (s instanceof KeyPair) {
+                return keyPair((KeyPair) s);
+            }
+            if (s instanceof Key) {
+                return key((Key) s, (Key) d);
+            }
+            if (d == null) {
+                throw new IllegalStateException("Cannot copy " + s.getClass().getName()
+                        + " in " + where);
+            }
+            if ((s instanceof OwnerPIN)
+                    || s.getClass().getName().startsWith("org.cryptonit.")) {
+                object(s, d);
+            }
+            /* Other objects (engines, random) are the ones of the new applet */
+            return d;
+        }
+
+        KeyPair keyPair(KeyPair s) {
+            PrivateKey priv = (PrivateKey) key(s.getPrivate(), null);
+            PublicKey pub = (PublicKey) key(s.getPublic(), null);
+            KeyPair d = new KeyPair(pub, priv);
+            copies.put(s, d);
+            return d;
+        }
+
+        Key key(Key s, Key d) {
+            if (copies.containsKey(s)) {
+                return (Key) copies.get(s);
+            }
+            if (d == null) {
+                d = KeyBuilder.buildKey(s.getType(), s.getSize(), false);
+            }
+            copies.put(s, d);
+            if (!s.isInitialized()) {
+                d.clearKey();
+                return d;
+            }
+            if (s instanceof ECKey) {
+                ECKey e = (ECKey) s, f = (ECKey) d;
+                f.setFieldFP(buf, (short) 0, e.getField(buf, (short) 0));
+                f.setA(buf, (short) 0, e.getA(buf, (short) 0));
+                f.setB(buf, (short) 0, e.getB(buf, (short) 0));
+                f.setG(buf, (short) 0, e.getG(buf, (short) 0));
+                f.setR(buf, (short) 0, e.getR(buf, (short) 0));
+                f.setK(e.getK());
+            }
+            if (s instanceof ECPrivateKey) {
+                ((ECPrivateKey) d).setS(buf, (short) 0, ((ECPrivateKey) s).getS(buf, (short) 0));
+            } else if (s instanceof ECPublicKey) {
+                ((ECPublicKey) d).setW(buf, (short) 0, ((ECPublicKey) s).getW(buf, (short) 0));
+            } else if (s instanceof RSAPrivateCrtKey) {
+                RSAPrivateCrtKey r = (RSAPrivateCrtKey) s, t = (RSAPrivateCrtKey) d;
+                t.setP(buf, (short) 0, r.getP(buf, (short) 0));
+                t.setQ(buf, (short) 0, r.getQ(buf, (short) 0));
+                t.setDP1(buf, (short) 0, r.getDP1(buf, (short) 0));
+                t.setDQ1(buf, (short) 0, r.getDQ1(buf, (short) 0));
+                t.setPQ(buf, (short) 0, r.getPQ(buf, (short) 0));
+            } else if (s instanceof RSAPublicKey) {
+                RSAPublicKey r = (RSAPublicKey) s, t = (RSAPublicKey) d;
+                t.setModulus(buf, (short) 0, r.getModulus(buf, (short) 0));
+                t.setExponent(buf, (short) 0, r.getExponent(buf, (short) 0));
+            } else if (s instanceof DESKey) {
+                ((DESKey) s).getKey(buf, (short) 0);
+                ((DESKey) d).setKey(buf, (short) 0);
+            } else if (!(s instanceof ECKey)) {
+                throw new IllegalStateException("Cannot copy key type " + s.getType());
+            }
+            return d;
+        }
+    }
+}